@@ -21,13 +21,14 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.content.FileProvider;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
 import android.widget.Toast;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -35,13 +36,16 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import timber.log.Timber;
+
 class BitmapUtils {
 
     private static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
 
 
     /**
-     * Resamples the captured photo to fit the screen for better memory usage.
+     * Resamples the captured photo to fit the screen for better memory usage, within the
+     * limits of the current processing profile.
      *
      * @param context   The application context.
      * @param imagePath The path of the photo to be resampled.
@@ -59,21 +63,94 @@ class BitmapUtils {
         int targetH = metrics.heightPixels;
         int targetW = metrics.widthPixels;
 
-        // Get the dimensions of the original bitmap
-        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-        bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(imagePath, bmOptions);
-        int photoW = bmOptions.outWidth;
-        int photoH = bmOptions.outHeight;
+        return decodeSampled(context, imagePath, targetW, targetH);
+    }
 
-        // Determine how much to scale down the image
-        int scaleFactor = Math.min(photoW / targetW, photoH / targetH);
+    /**
+     * Decodes the captured photo at the largest size allowed by the current processing
+     * profile, for baking the emojis into the saved image.
+     *
+     * @param context   The application context.
+     * @param imagePath The path of the photo to be decoded.
+     * @return The decoded bitmap
+     */
+    static Bitmap decodeFullResolution(Context context, String imagePath) {
+        int maxDimension = ProcessingProfile.get(context).getMaxDecodeDimension();
+        return decodeSampled(context, imagePath, maxDimension, maxDimension);
+    }
 
-        // Decode the image file into a Bitmap sized to fill the View
-        bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
+    /**
+     * Decodes a photo subsampled to fill the target size, but no larger than the largest
+     * dimension of the current processing profile.
+     *
+     * @param context   The application context.
+     * @param imagePath The path of the photo to be decoded.
+     * @param targetW   The target width.
+     * @param targetH   The target height.
+     * @return The decoded mutable bitmap, or null if the photo could not be read.
+     */
+    private static Bitmap decodeSampled(Context context, String imagePath, int targetW,
+                                        int targetH) {
+
+        // Open the capture once and decode both the bounds and the pixels from the same
+        // descriptor; BitmapFactory restores the descriptor offset after each decode
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = ParcelFileDescriptor.open(new File(imagePath),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            FileDescriptor fd = pfd.getFileDescriptor();
+
+            // Get the dimensions of the original bitmap
+            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
+            bmOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, bmOptions);
+            int photoW = bmOptions.outWidth;
+            int photoH = bmOptions.outHeight;
+
+            // Determine how much to scale down the image. BitmapFactory rounds the sample size
+            // down to a power of two, so round it first to know the actual decoded size.
+            int scaleFactor = Integer.highestOneBit(
+                    Math.max(1, Math.min(photoW / targetW, photoH / targetH)));
+
+            // Scale down further until the image fits the profile's largest dimension
+            ProcessingProfile profile = ProcessingProfile.get(context);
+            int maxDimension = profile.getMaxDecodeDimension();
+            while (photoW / scaleFactor > maxDimension || photoH / scaleFactor > maxDimension) {
+                scaleFactor *= 2;
+            }
 
-        return BitmapFactory.decodeFile(imagePath);
+            // Decode the image file into a mutable Bitmap sized to fill the View, so the emojis
+            // can be drawn straight into it
+            bmOptions.inJustDecodeBounds = false;
+            bmOptions.inSampleSize = scaleFactor;
+            bmOptions.inPreferredConfig = profile.getBitmapConfig();
+            bmOptions.inMutable = true;
+
+            // Mark the capture as recently used for the cache janitor
+            ImageStorage.touch(imagePath);
+
+            return BitmapFactory.decodeFileDescriptor(fd, null, bmOptions);
+        } catch (IOException e) {
+            Timber.e(e, "resamplePic: unable to open " + imagePath);
+            return null;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Closes a descriptor, ignoring any error.
+     *
+     * @param pfd The descriptor to close, may be null.
+     */
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd != null) {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                Timber.w(e, "closeQuietly: failed to close descriptor");
+            }
+        }
     }
 
 
@@ -98,13 +175,13 @@ class BitmapUtils {
     static File createTempImageFile(Context context) throws IOException {
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
                 Locale.getDefault()).format(new Date());
-        String imageFileName = "JPEG_" + timeStamp + "_";
-        File storageDir = context.getExternalCacheDir();
+        String imageFileName = ImageStorage.CAPTURE_PREFIX + timeStamp + "_";
+        File storageDir = ImageStorage.getCacheDir(context);
 
         return File.createTempFile(
-                imageFileName,  /* prefix */
-                ".jpg",         /* suffix */
-                storageDir      /* directory */
+                imageFileName,                /* prefix */
+                ImageStorage.CAPTURE_SUFFIX,  /* suffix */
+                storageDir                    /* directory */
         );
     }
 
@@ -155,9 +232,9 @@ class BitmapUtils {
      * @param imagePath The path of the saved image
      */
     //This method cause the image content provider to add the image from the passed-in
-    // path to the system gallery, so it can be found by other app. It is only called
-    // inside the saveImage() described below.
-    private static void galleryAddPic(Context context, String imagePath) {
+    // path to the system gallery, so it can be found by other app. It is called
+    // inside the saveImage() described below, and for the emojified videos.
+    static void galleryAddPic(Context context, String imagePath) {
         Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
         File f = new File(imagePath);
         Uri contentUri = Uri.fromFile(f);
@@ -185,11 +262,12 @@ class BitmapUtils {
      *
      * @param context The application context.
      * @param image   The image to be saved.
-     * @return The path of the saved image.
+     * @return The path of the saved image, or null if it could not be saved.
      */
     //This method saves the passed-in Bitmap in the External Storage,
     // in the subdirectory called "Emojify". It also adds the image to the system gallery
-    // by calling the above galleryAddPic().
+    // by calling the above galleryAddPic(). It does not touch the UI, so it can be called
+    // from a background thread.
     static String saveImage(Context context, Bitmap image) {
 
         String savedImagePath = null;
@@ -198,16 +276,10 @@ class BitmapUtils {
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
                 Locale.getDefault()).format(new Date());
         String imageFileName = "JPEG_" + timeStamp + ".jpg";
-        File storageDir = new File(
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
-                        + "/Emojify");
-        boolean success = true;
-        if (!storageDir.exists()) {
-            success = storageDir.mkdirs();
-        }
+        File storageDir = ImageStorage.getOutputDir();
 
         // Save the new Bitmap
-        if (success) {
+        if (storageDir != null) {
             File imageFile = new File(storageDir, imageFileName);
             savedImagePath = imageFile.getAbsolutePath();
             try {
@@ -215,15 +287,14 @@ class BitmapUtils {
                 image.compress(Bitmap.CompressFormat.JPEG, 100, fOut);
                 fOut.close();
             } catch (Exception e) {
+                // The directory may have been removed since it was cached, check again next time
+                ImageStorage.invalidateOutputDir();
                 e.printStackTrace();
+                return null;
             }
 
             // Add the image to the system gallery
             galleryAddPic(context, savedImagePath);
-
-            // Show a Toast with the save location
-            String savedMessage = context.getString(R.string.saved_message, savedImagePath);
-            Toast.makeText(context, savedMessage, Toast.LENGTH_SHORT).show();
         }
 
         return savedImagePath;
@@ -0,0 +1,177 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import timber.log.Timber;
+
+//The EmojiAtlas packs all the emoji sprites into a single premultiplied ARGB_8888 bitmap, together
+//with a pyramid of filtered half-size copies (mip levels). Each level is a block of 4 x 2 square
+//cells, and the blocks are stacked vertically with level 0 (the largest) at the top:
+//
+//   +----+----+----+----+
+//   | 0  | 1  | 2  | 3  |   level 0, cells of CELL_SIZE pixels
+//   +----+----+----+----+
+//   | 4  | 5  | 6  | 7  |
+//   +--+--+--+--+-------+
+//   |0 |1 |2 |3 |           level 1, cells of CELL_SIZE / 2 pixels
+//   |4 |5 |6 |7 |
+//   +--+--+--+--+
+//   ...                     down to MIN_CELL_SIZE
+//
+//The atlas is built once, by the WarmUp on a background thread at startup, so sprite memory is
+//fixed and known. Drawing an emoji picks the smallest level that is still at least as large as
+//the face, so the filtered downscale at draw time never covers more than a factor of two.
+class EmojiAtlas {
+
+    private static final int CELL_SIZE = 256;
+    private static final int MIN_CELL_SIZE = 16;
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 2;
+
+    private static EmojiAtlas sInstance;
+
+    private final Bitmap mAtlas;
+    private final Rect[][] mCells;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * Returns the atlas, building it on the calling thread if it is not ready yet. If a
+     * background load is in progress, this waits for it instead of building a second copy.
+     *
+     * @param context The application context.
+     * @return The emoji atlas.
+     */
+    static synchronized EmojiAtlas get(Context context) {
+        if (sInstance == null) {
+            long start = System.currentTimeMillis();
+            sInstance = new EmojiAtlas(context.getApplicationContext().getResources());
+            Timber.d("EmojiAtlas: built " + sInstance.mAtlas.getWidth() + "x"
+                    + sInstance.mAtlas.getHeight() + " (" + sInstance.getByteCount()
+                    + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return sInstance;
+    }
+
+    private EmojiAtlas(Resources resources) {
+        Emojifier.Emoji[] emojis = Emojifier.Emoji.values();
+
+        // Count the levels and the total height of the stacked level blocks
+        int levels = 0;
+        int height = 0;
+        for (int size = CELL_SIZE; size >= MIN_CELL_SIZE; size /= 2) {
+            levels++;
+            height += size * ROWS;
+        }
+
+        mAtlas = Bitmap.createBitmap(CELL_SIZE * COLUMNS, height, Bitmap.Config.ARGB_8888);
+        mCells = new Rect[levels][emojis.length];
+
+        // Compute the cell rectangles of every level
+        int top = 0;
+        for (int level = 0, size = CELL_SIZE; level < levels; level++, size /= 2) {
+            for (int i = 0; i < emojis.length; i++) {
+                int left = (i % COLUMNS) * size;
+                int cellTop = top + (i / COLUMNS) * size;
+                mCells[level][i] = new Rect(left, cellTop, left + size, cellTop + size);
+            }
+            top += size * ROWS;
+        }
+
+        Canvas canvas = new Canvas(mAtlas);
+
+        // Fill level 0 with the sprites, decoded at their native size and fitted to the cell
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        for (int i = 0; i < emojis.length; i++) {
+            Bitmap sprite = BitmapFactory.decodeResource(resources, emojis[i].getDrawableId(),
+                    options);
+            canvas.drawBitmap(sprite, null, fitCenter(sprite, mCells[0][i]), mPaint);
+            sprite.recycle();
+        }
+
+        // Build each level by a filtered half-size copy of the previous one
+        for (int level = 1; level < levels; level++) {
+            Rect src = blockBounds(level - 1);
+            Bitmap previous = Bitmap.createBitmap(mAtlas, src.left, src.top,
+                    src.width(), src.height());
+            canvas.drawBitmap(previous, null, blockBounds(level), mPaint);
+            previous.recycle();
+        }
+    }
+
+    /**
+     * Returns the bounds of all the cells of a level.
+     */
+    private Rect blockBounds(int level) {
+        Rect first = mCells[level][0];
+        int size = first.width();
+        return new Rect(0, first.top, size * COLUMNS, first.top + size * ROWS);
+    }
+
+    /**
+     * Returns the largest rectangle with the aspect ratio of the sprite centered in the cell.
+     */
+    private static RectF fitCenter(Bitmap sprite, Rect cell) {
+        float scale = Math.min((float) cell.width() / sprite.getWidth(),
+                (float) cell.height() / sprite.getHeight());
+        float width = sprite.getWidth() * scale;
+        float height = sprite.getHeight() * scale;
+        float left = cell.left + (cell.width() - width) / 2;
+        float top = cell.top + (cell.height() - height) / 2;
+        return new RectF(left, top, left + width, top + height);
+    }
+
+    /**
+     * Draws an emoji into the destination rectangle, sampling from the nearest mip level.
+     *
+     * @param canvas The canvas to draw into.
+     * @param emoji  The emoji to draw.
+     * @param dst    The destination rectangle, in canvas coordinates. The canvas must not be
+     *               scaled, so the level is picked from the size actually drawn.
+     */
+    void draw(Canvas canvas, Emojifier.Emoji emoji, RectF dst) {
+        canvas.drawBitmap(mAtlas, mCells[levelFor(dst)][emoji.ordinal()], dst, mPaint);
+    }
+
+    /**
+     * Picks the smallest level whose cells are still at least as large as the destination.
+     */
+    private int levelFor(RectF dst) {
+        float target = Math.max(dst.width(), dst.height());
+        int level = 0;
+        while (level + 1 < mCells.length && mCells[level + 1][0].width() >= target) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the number of bytes used by the atlas pixels.
+     */
+    int getByteCount() {
+        return mAtlas.getRowBytes() * mAtlas.getHeight();
+    }
+}
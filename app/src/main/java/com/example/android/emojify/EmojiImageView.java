@@ -0,0 +1,99 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.support.v7.widget.AppCompatImageView;
+import android.util.AttributeSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//The EmojiImageView shows the photo like a regular ImageView and draws the emojis over it as a
+//live overlay, mapped through the same image matrix as the photo. The photo pixels are never
+//modified, so emojis can be added one by one as the faces are classified, and the composite is
+//only baked when the user saves or shares it.
+public class EmojiImageView extends AppCompatImageView {
+
+    private final List<Emojifier.Placement> mPlacements = new ArrayList<>();
+    private final RectF mDrawBounds = new RectF();
+
+    private EmojiAtlas mAtlas;
+
+    public EmojiImageView(Context context) {
+        super(context);
+    }
+
+    public EmojiImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public EmojiImageView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Adds an emoji to the overlay.
+     *
+     * @param placement The emoji and its position, in the coordinates of the photo.
+     */
+    void addEmoji(Emojifier.Placement placement) {
+        if (mAtlas == null) {
+            mAtlas = EmojiAtlas.get(getContext());
+        }
+        mPlacements.add(placement);
+        invalidate();
+    }
+
+    /**
+     * Removes all the emojis from the overlay.
+     */
+    void clearEmojis() {
+        mPlacements.clear();
+        invalidate();
+    }
+
+    /**
+     * @return A copy of the emojis currently shown, in the coordinates of the photo.
+     */
+    List<Emojifier.Placement> getEmojis() {
+        return new ArrayList<>(mPlacements);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (mPlacements.isEmpty() || getDrawable() == null) {
+            return;
+        }
+
+        // Map the emojis the same way ImageView maps the photo. The bounds are mapped rather
+        // than the canvas, so the atlas picks its mip level from the size on screen.
+        Matrix imageMatrix = getImageMatrix();
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        for (Emojifier.Placement placement : mPlacements) {
+            imageMatrix.mapRect(mDrawBounds, placement.getBounds());
+            mAtlas.draw(canvas, placement.getEmoji(), mDrawBounds);
+        }
+        canvas.restoreToCount(saveCount);
+    }
+}
@@ -23,26 +23,25 @@ package com.example.android.emojify;
  */
 
 
-//Each photo may contain multiple faces,so we use the following strategy to create a final bitmap
-//with all the emojis: we start with a variable called "resultBitmap" initialized to the picture
-//before any processing.Then we detect the faces in it.Next we iteratre through the faces starting with
-//the first one. After we select the proper emoji drawable, we call our "addBitmapToFace" method passing-in
-//the original picture, the selected emoji, and the face object, and set the result equal to our resultBitmap.
-//So that it can be used as the base for our next iteration. We then move to next iteration, the next face,
-//and repeat the process except this time the original picture passed-into "addBitmapToFace" includes the emoji
-//from the previous iteration.This way each loop adds an emoji to the image.
+//Each photo may contain multiple faces,so we split the work in two steps. First "detectFaces" finds
+//the faces and, for each one, picks the proper emoji and the rectangle it should cover (a
+//"Placement"), reporting each placement as soon as it is known so the UI can draw it over the
+//photo. Then, only when the result is saved or shared, "overlayEmojis" bakes the placements into
+//the pixels: it draws every emoji straight into a single mutable bitmap, scaling the placements to
+//the resolution of that bitmap, so only one full-size bitmap is ever alive.
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.RectF;
 import android.util.SparseArray;
-import android.widget.Toast;
 
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.FaceDetector;
 
+import java.util.List;
+
 import timber.log.Timber;
 
 class Emojifier {
@@ -52,91 +51,130 @@ class Emojifier {
     private static final double SMILING_PROB_THRESHOLD = .15;
     private static final double EYE_OPEN_PROB_THRESHOLD = .5;
 
+    private static FaceDetector sDetector;
+
+    // Returned by detectFaces() when the face detector is not ready yet
+    static final int DETECTOR_UNAVAILABLE = -1;
+
+    /**
+     * Callback for each emoji placed by detectFaces(), called on the detecting thread.
+     */
+    interface OnEmojiPlacedListener {
+        void onEmojiPlaced(Placement placement);
+    }
+
     /**
-     * Method for detecting faces in a bitmap, and drawing emoji depending on the facial
-     * expression.
+     * Method for detecting faces in a bitmap, and picking an emoji depending on the facial
+     * expression. Nothing is drawn: each emoji is reported to the listener as soon as its face
+     * is classified, so it can be shown over the picture right away and only baked into the
+     * pixels with overlayEmojis() when needed. Must not be called on the main thread.
      *
-     * @param context The application context.
-     * @param picture The picture in which to detect the faces.
+     * @param context  The application context.
+     * @param picture  The picture in which to detect the faces.
+     * @param listener The listener to report the placed emojis to.
+     * @return The number of faces, or DETECTOR_UNAVAILABLE.
      */
-    static Bitmap detectFacesandOverlayEmoji(Context context, Bitmap picture) {
+    static int detectFaces(Context context, Bitmap picture, OnEmojiPlacedListener listener) {
+
+        // Get the shared face detector
+        FaceDetector detector = getDetector(context);
 
-        // Create the face detector, disable tracking and enable classifications
-        FaceDetector detector = new FaceDetector.Builder(context)
-                .setTrackingEnabled(false)
-                .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
-                .build();
+        // If Play Services has not finished downloading the face model yet, give up
+        if (!detector.isOperational()) {
+            Timber.w("detectFaces: face detector is not operational");
+            return DETECTOR_UNAVAILABLE;
+        }
 
         // Build the frame
         Frame frame = new Frame.Builder().setBitmap(picture).build();
 
         // Detect the faces
-        SparseArray<Face> faces = detector.detect(frame);
+        SparseArray<Face> faces = detect(detector, frame);
 
         // Log the number of faces
         Timber.d("detectFaces: number of faces = " + faces.size());
 
+        // Iterate through the faces and report the chosen emoji for each one
+        for (int i = 0; i < faces.size(); ++i) {
+            Face face = faces.valueAt(i);
+            listener.onEmojiPlaced(placeEmoji(whichEmoji(face), face));
+        }
+
+        return faces.size();
+    }
+
+    /**
+     * Method for baking emojis into a picture.
+     *
+     * @param context    The application context.
+     * @param picture    The picture to draw into. It is drawn into directly if it is mutable,
+     *                   otherwise into a mutable copy.
+     * @param placements The emojis to draw.
+     * @param scale      The scale from the coordinates of the placements to the picture's.
+     * @return The picture with the emojis.
+     */
+    static Bitmap overlayEmojis(Context context, Bitmap picture, List<Placement> placements,
+                                float scale) {
+
         // Initialize result bitmap to original picture
         Bitmap resultBitmap = picture;
 
-        // If there are no faces detected, show a Toast message
-        if (faces.size() == 0) {
-            Toast.makeText(context, R.string.no_faces_message, Toast.LENGTH_SHORT).show();
-        } else {
+        if (!placements.isEmpty()) {
 
-            // Iterate through the faces
-            for (int i = 0; i < faces.size(); ++i) {
-                Face face = faces.valueAt(i);
-
-                Bitmap emojiBitmap;
-                switch (whichEmoji(face)) {
-                    case SMILE:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.smile);
-                        break;
-                    case FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.frown);
-                        break;
-                    case LEFT_WINK:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.leftwink);
-                        break;
-                    case RIGHT_WINK:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.rightwink);
-                        break;
-                    case LEFT_WINK_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.leftwinkfrown);
-                        break;
-                    case RIGHT_WINK_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.rightwinkfrown);
-                        break;
-                    case CLOSED_EYE_SMILE:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.closed_smile);
-                        break;
-                    case CLOSED_EYE_FROWN:
-                        emojiBitmap = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.closed_frown);
-                        break;
-                    default:
-                        emojiBitmap = null;
-                        Toast.makeText(context, R.string.no_emoji, Toast.LENGTH_SHORT).show();
-                }
-
-                // Add the emojiBitmap to the proper position in the original image
-                resultBitmap = addBitmapToFace(resultBitmap, emojiBitmap, face);
+            // Get the emoji atlas, waiting for the startup load if it is still running
+            EmojiAtlas atlas = EmojiAtlas.get(context);
+
+            // Draw into the picture itself when possible, otherwise into one mutable copy
+            if (!resultBitmap.isMutable()) {
+                resultBitmap = resultBitmap.copy(resultBitmap.getConfig(), true);
+            }
+            Canvas canvas = new Canvas(resultBitmap);
+
+            // Add each emoji to its position in the picture, scaling the bounds rather than the
+            // canvas so the atlas picks its mip level from the size in the picture
+            RectF bounds = new RectF();
+            for (Placement placement : placements) {
+                RectF placed = placement.getBounds();
+                bounds.set(placed.left * scale, placed.top * scale, placed.right * scale,
+                        placed.bottom * scale);
+                atlas.draw(canvas, placement.getEmoji(), bounds);
             }
         }
 
+        return resultBitmap;
+    }
 
-        // Release the detector
-        detector.release();
+    /**
+     * Returns the face detector shared by the whole process, creating it on the first call.
+     * The detector is kept for the lifetime of the process, so that the warm-up and every
+     * emojify after it reuse the same native detector.
+     *
+     * @param context The application context.
+     * @return The shared face detector.
+     */
+    static synchronized FaceDetector getDetector(Context context) {
+        if (sDetector == null) {
+            // Create the face detector, disable tracking and enable classifications
+            sDetector = new FaceDetector.Builder(context.getApplicationContext())
+                    .setTrackingEnabled(false)
+                    .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
+                    .build();
+        }
+        return sDetector;
+    }
 
-        return resultBitmap;
+    /**
+     * Runs the detector on a frame. Calls are serialized, since the shared detector may be
+     * used by the warm-up thread and the UI at the same time.
+     *
+     * @param detector The face detector.
+     * @param frame    The frame in which to detect the faces.
+     * @return The detected faces.
+     */
+    static SparseArray<Face> detect(FaceDetector detector, Frame frame) {
+        synchronized (detector) {
+            return detector.detect(frame);
+        }
     }
 
 
@@ -147,7 +185,7 @@ class Emojifier {
      * @param face The face for which you pick an emoji.
      */
 
-    private static Emoji whichEmoji(Face face) {
+    static Emoji whichEmoji(Face face) {
         // Log all the probabilities
         Timber.d("whichEmoji: smilingProb = " + face.getIsSmilingProbability());
         Timber.d("whichEmoji: leftEyeOpenProb = "
@@ -195,56 +233,73 @@ class Emojifier {
     }
 
     /**
-     * Combines the original picture with the emoji bitmaps
+     * Determines where the emoji goes over a face
      *
-     * @param backgroundBitmap The original picture
-     * @param emojiBitmap      The chosen emoji
-     * @param face             The detected face
-     * @return The final bitmap, including the emojis over the faces
+     * @param emoji The chosen emoji
+     * @param face  The detected face
+     * @return The placement of the emoji, in the coordinates of the picture
      */
-    private static Bitmap addBitmapToFace(Bitmap backgroundBitmap, Bitmap emojiBitmap, Face face) {
-
-        // Initialize the results bitmap to be a mutable copy of the original image
-        Bitmap resultBitmap = Bitmap.createBitmap(backgroundBitmap.getWidth(),
-                backgroundBitmap.getHeight(), backgroundBitmap.getConfig());
+    static Placement placeEmoji(Emoji emoji, Face face) {
 
         // Scale the emoji so it looks better on the face
         float scaleFactor = EMOJI_SCALE_FACTOR;
 
-        // Determine the size of the emoji to match the width of the face and preserve aspect ratio
-        int newEmojiWidth = (int) (face.getWidth() * scaleFactor);
-        int newEmojiHeight = (int) (emojiBitmap.getHeight() *
-                newEmojiWidth / emojiBitmap.getWidth() * scaleFactor);
-
-
-        // Scale the emoji
-        emojiBitmap = Bitmap.createScaledBitmap(emojiBitmap, newEmojiWidth, newEmojiHeight, false);
+        // Determine the size of the emoji to match the width of the face; the sprites are square
+        float newEmojiWidth = face.getWidth() * scaleFactor;
+        float newEmojiHeight = newEmojiWidth * scaleFactor;
 
         // Determine the emoji position so it best lines up with the face
         float emojiPositionX =
-                (face.getPosition().x + face.getWidth() / 2) - emojiBitmap.getWidth() / 2;
+                (face.getPosition().x + face.getWidth() / 2) - newEmojiWidth / 2;
         float emojiPositionY =
-                (face.getPosition().y + face.getHeight() / 2) - emojiBitmap.getHeight() / 3;
+                (face.getPosition().y + face.getHeight() / 2) - newEmojiHeight / 3;
 
-        // Create the canvas and draw the bitmaps to it
-        Canvas canvas = new Canvas(resultBitmap);
-        canvas.drawBitmap(backgroundBitmap, 0, 0, null);
-        canvas.drawBitmap(emojiBitmap, emojiPositionX, emojiPositionY, null);
+        return new Placement(emoji, new RectF(emojiPositionX, emojiPositionY,
+                emojiPositionX + newEmojiWidth, emojiPositionY + newEmojiHeight));
+    }
 
-        return resultBitmap;
+
+    // An emoji and the rectangle it covers in the picture
+    static class Placement {
+        private final Emoji mEmoji;
+        private final RectF mBounds;
+
+        Placement(Emoji emoji, RectF bounds) {
+            mEmoji = emoji;
+            mBounds = bounds;
+        }
+
+        Emoji getEmoji() {
+            return mEmoji;
+        }
+
+        RectF getBounds() {
+            return mBounds;
+        }
     }
 
 
     // Enum for all possible Emojis
-    private enum Emoji {
-        SMILE,
-        FROWN,
-        LEFT_WINK,
-        RIGHT_WINK,
-        LEFT_WINK_FROWN,
-        RIGHT_WINK_FROWN,
-        CLOSED_EYE_SMILE,
-        CLOSED_EYE_FROWN
+    enum Emoji {
+        SMILE(R.drawable.smile),
+        FROWN(R.drawable.frown),
+        LEFT_WINK(R.drawable.leftwink),
+        RIGHT_WINK(R.drawable.rightwink),
+        LEFT_WINK_FROWN(R.drawable.leftwinkfrown),
+        RIGHT_WINK_FROWN(R.drawable.rightwinkfrown),
+        CLOSED_EYE_SMILE(R.drawable.closed_smile),
+        CLOSED_EYE_FROWN(R.drawable.closed_frown);
+
+        private final int mDrawableId;
+
+        Emoji(int drawableId) {
+            mDrawableId = drawableId;
+        }
+
+        // The drawable resource of the emoji sprite
+        int getDrawableId() {
+            return mDrawableId;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.Application;
+
+import timber.log.Timber;
+
+//The EmojifyApplication runs once per process, before any activity is created, so it is where
+//the app starts the background work that the first emojify would otherwise wait for.
+public class EmojifyApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Set up Timber
+        Timber.plant(new Timber.DebugTree());
+
+        // Remove captures left behind by killed processes or cancelled flows
+        ImageStorage.trimCacheAsync(this);
+
+        // Initialize the face detector and the emoji sprites in the background
+        WarmUp.start(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // When the system runs low on memory while we are running, process the next photos
+        // with a smaller profile. The background levels only mean we are on the LRU list, so
+        // they only shrink the capture cache.
+        if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            ProcessingProfile.applyPressure(this, level == TRIM_MEMORY_RUNNING_CRITICAL);
+            ImageStorage.trimCacheAsync(this);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            ImageStorage.trimCacheAsync(this);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Environment;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import timber.log.Timber;
+
+//The ImageStorage class owns the two directories the app writes to: the external cache directory
+//where the camera drops the captured photo, and the public "Pictures/Emojify" directory where the
+//emojified images are saved. The directory handles are resolved once and cached, and the cache
+//directory is kept under a byte quota by a janitor that runs on a background thread at startup
+//and again whenever the processing profile is downgraded.
+class ImageStorage {
+
+    // Captures older than this are left over from a killed process or a cancelled flow
+    private static final long STALE_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    // Captures younger than this may still be in use by the camera app, so they are never trimmed
+    private static final long IN_USE_AGE_MILLIS = 10L * 60 * 1000;
+
+    private static final String OUTPUT_DIR_NAME = "Emojify";
+
+    // File name prefix and suffix of the temporary captures, the only files the janitor touches
+    static final String CAPTURE_PREFIX = "JPEG_";
+    static final String CAPTURE_SUFFIX = ".jpg";
+
+    private static File sCacheDir;
+    private static File sOutputDir;
+
+    // A capture with its size and modification time, read once so they can not change mid-sort
+    private static class Capture {
+        final File mFile;
+        final long mLastModified;
+        final long mLength;
+
+        Capture(File file) {
+            mFile = file;
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+    }
+
+    /**
+     * Returns the directory for the temporary captures, resolving it only on the first call.
+     *
+     * @param context The application context.
+     * @return The external cache directory, or null if external storage is unavailable.
+     */
+    static synchronized File getCacheDir(Context context) {
+        if (sCacheDir == null) {
+            sCacheDir = context.getApplicationContext().getExternalCacheDir();
+        }
+        return sCacheDir;
+    }
+
+    /**
+     * Returns the public directory for the saved images, creating it only on the first call.
+     *
+     * @return The output directory, or null if it could not be created.
+     */
+    static synchronized File getOutputDir() {
+        if (sOutputDir == null) {
+            File dir = new File(
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
+                    OUTPUT_DIR_NAME);
+            if (dir.isDirectory() || dir.mkdirs()) {
+                sOutputDir = dir;
+            }
+        }
+        return sOutputDir;
+    }
+
+    /**
+     * Forgets the cached output directory, so the next save checks for it and recreates it.
+     * Used when a write fails because the directory was removed behind our back.
+     */
+    static synchronized void invalidateOutputDir() {
+        sOutputDir = null;
+    }
+
+    /**
+     * Marks a capture as recently used, so the janitor trims it after the older ones.
+     *
+     * @param imagePath The path of the capture.
+     */
+    static void touch(String imagePath) {
+        if (imagePath != null) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(imagePath).setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Starts the cache janitor on a background thread.
+     *
+     * @param context The application context.
+     */
+    static void trimCacheAsync(Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimCache(appContext);
+            }
+        });
+    }
+
+    /**
+     * Deletes stale captures and then the least recently used ones until the captures in the
+     * cache directory are under the quota of the current processing profile. Other files in the
+     * cache directory are neither counted nor deleted. Must not be called on the main thread.
+     *
+     * @param context The application context.
+     */
+    static void trimCache(Context context) {
+        File cacheDir = getCacheDir(context);
+        if (cacheDir == null) {
+            return;
+        }
+
+        // Only look at our own captures, other libraries may keep files here too
+        File[] files = cacheDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(CAPTURE_PREFIX)
+                        && name.endsWith(CAPTURE_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        // Snapshot the captures, then sort them oldest first. The files themselves may be
+        // touched or written while we sort, which must not change the order.
+        long quotaBytes = ProcessingProfile.get(context).getCacheQuotaBytes();
+        long totalBytes = 0;
+        List<Capture> captures = new ArrayList<>(files.length);
+        for (File file : files) {
+            Capture capture = new Capture(file);
+            captures.add(capture);
+            totalBytes += capture.mLength;
+        }
+        Collections.sort(captures, new Comparator<Capture>() {
+            @Override
+            public int compare(Capture a, Capture b) {
+                long la = a.mLastModified;
+                long lb = b.mLastModified;
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        int deletedCount = 0;
+        long deletedBytes = 0;
+        for (Capture capture : captures) {
+            long age = now - capture.mLastModified;
+            if (age < IN_USE_AGE_MILLIS) {
+                continue;
+            }
+            if (age < STALE_AGE_MILLIS && totalBytes <= quotaBytes) {
+                // Everything after this one is newer, and we are under quota
+                break;
+            }
+            if (capture.mFile.lastModified() != capture.mLastModified) {
+                // Used again since the snapshot, keep it
+                continue;
+            }
+            if (capture.mFile.delete()) {
+                totalBytes -= capture.mLength;
+                deletedBytes += capture.mLength;
+                deletedCount++;
+            }
+        }
+
+        Timber.d("trimCache: deleted " + deletedCount + " files (" + deletedBytes
+                + " bytes), " + totalBytes + " bytes remaining");
+    }
+}
@@ -18,11 +18,16 @@ package com.example.android.emojify;
 
 
 import android.Manifest;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
@@ -32,39 +37,57 @@ import android.support.v4.content.FileProvider;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.Button;
-import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 import timber.log.Timber;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements WarmUp.Listener {
 
 
     private static final int REQUEST_IMAGE_CAPTURE = 1;
     private static final int REQUEST_STORAGE_PERMISSION = 1;
+    private static final int REQUEST_VIDEO_PICK = 2;
+    private static final int REQUEST_VIDEO_STORAGE_PERMISSION = 2;
 
     private static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
 
-    @BindView(R.id.image_view) ImageView mImageView;
+    @BindView(R.id.image_view) EmojiImageView mImageView;
 
     @BindView(R.id.emojify_button) Button mEmojifyButton;
+    @BindView(R.id.video_button) Button mVideoButton;
     @BindView(R.id.share_button) FloatingActionButton mShareFab;
     @BindView(R.id.save_button) FloatingActionButton mSaveFab;
     @BindView(R.id.clear_button) FloatingActionButton mClearFab;
 
     @BindView(R.id.title_text_view) TextView mTitleTextView;
 
+    @BindView(R.id.progress_bar) ProgressBar mProgressBar;
+
     private String mTempPhotoPath;
 
     private Bitmap mResultsBitmap;
 
+    // Set while a captured photo waits for the warm-up to finish
+    private boolean mWaitingForWarmUp;
+
+    // When the current photo was returned by the camera, and whether the warm-up was done then
+    private long mRequestTime;
+    private boolean mColdRequest;
+
+    // The background work on the current photo, if any
+    private DetectTask mDetectTask;
+    private BakeTask mBakeTask;
+    private VideoTask mVideoTask;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -74,8 +97,33 @@ public class MainActivity extends AppCompatActivity {
         // Bind the views
         ButterKnife.bind(this);
 
-        // Set up Timber
-        Timber.plant(new Timber.DebugTree());
+        // Make sure the warm-up is running, it is normally started by the Application
+        WarmUp.start(this);
+
+        // Go back to full quality after any earlier memory pressure
+        ProcessingProfile.restore(this);
+
+        // Video encoding needs MediaMuxer, which is only available from API 18
+        if (!isVideoSupported()) {
+            mVideoButton.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Stop waiting for the warm-up and the background tasks, the activity is gone
+        WarmUp.removeListener(this);
+        if (mDetectTask != null) {
+            mDetectTask.cancel(false);
+        }
+        if (mBakeTask != null) {
+            mBakeTask.cancel(false);
+        }
+        if (mVideoTask != null) {
+            mVideoTask.cancel(true);
+        }
     }
 
     /**
@@ -98,6 +146,26 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * OnClick method for the video Button. Lets the user pick a video to emojify.
+     */
+    @OnClick(R.id.video_button)
+    public void emojifyVideo() {
+        // Check for the external storage permission
+        if (ContextCompat.checkSelfPermission(this,
+                Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+
+            // If you do not have permission, request it
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
+                    REQUEST_VIDEO_STORAGE_PERMISSION);
+        } else {
+            // Launch the video picker if the permission exists
+            launchVideoPicker();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
                                            @NonNull int[] grantResults) {
@@ -114,6 +182,17 @@ public class MainActivity extends AppCompatActivity {
                 }
                 break;
             }
+            case REQUEST_VIDEO_STORAGE_PERMISSION: {
+                if (grantResults.length > 0
+                        && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                    // If you get permission, launch the video picker
+                    launchVideoPicker();
+                } else {
+                    // If you do not get permission, show a Toast
+                    Toast.makeText(this, R.string.permission_denied, Toast.LENGTH_SHORT).show();
+                }
+                break;
+            }
         }
     }
 
@@ -156,12 +235,50 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Lets the user pick a video from any app that provides one.
+     */
+    private void launchVideoPicker() {
+        Intent pickVideoIntent = new Intent(Intent.ACTION_GET_CONTENT);
+        pickVideoIntent.setType("video/*");
+        pickVideoIntent.addCategory(Intent.CATEGORY_OPENABLE);
+
+        // Ensure that there's an activity to handle the intent
+        if (pickVideoIntent.resolveActivity(getPackageManager()) != null) {
+            startActivityForResult(pickVideoIntent, REQUEST_VIDEO_PICK);
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        // If a video was picked, emojify it
+        if (requestCode == REQUEST_VIDEO_PICK) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                startVideoTask(data.getData());
+            }
+            return;
+        }
+
         // If the image capture activity was called and was successful
         if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_OK) {
-            // Process the image and set it to the TextView
-            processAndSetImage();
+            mRequestTime = SystemClock.elapsedRealtime();
+            mColdRequest = !WarmUp.isFinished();
+
+            if (mColdRequest) {
+                // Show progress until the detector is ready, then process the image
+                mEmojifyButton.setVisibility(View.GONE);
+                mVideoButton.setVisibility(View.GONE);
+                mTitleTextView.setVisibility(View.GONE);
+                mProgressBar.setVisibility(View.VISIBLE);
+
+                // Let the user back out while waiting
+                mClearFab.setVisibility(View.VISIBLE);
+                mWaitingForWarmUp = true;
+                WarmUp.whenFinished(this);
+            } else {
+                // Process the image and set it to the TextView
+                processAndSetImage();
+            }
         } else {
 
             // Otherwise, delete the temporary image file
@@ -169,55 +286,127 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onWarmUpFinished(boolean operational) {
+        if (mWaitingForWarmUp) {
+            mWaitingForWarmUp = false;
+            mProgressBar.setVisibility(View.GONE);
+            processAndSetImage();
+        }
+    }
+
     /**
-     * Method for processing the captured image and setting it to the TextView.
+     * Method for processing the captured image and setting it to the ImageView. The photo is
+     * shown right away, and the emojis are added over it as the faces are classified.
      */
     private void processAndSetImage() {
 
-        // Toggle Visibility of the views
+        // Toggle Visibility of the views; saving and sharing wait for the faces
         mEmojifyButton.setVisibility(View.GONE);
+        mVideoButton.setVisibility(View.GONE);
         mTitleTextView.setVisibility(View.GONE);
-        mSaveFab.setVisibility(View.VISIBLE);
-        mShareFab.setVisibility(View.VISIBLE);
         mClearFab.setVisibility(View.VISIBLE);
 
-        // Resample the saved image to fit the ImageView
-        mResultsBitmap = BitmapUtils.resamplePic(this, mTempPhotoPath);
+        // Release the previous result before decoding the new one
+        mImageView.setImageBitmap(null);
+        mImageView.clearEmojis();
+        mResultsBitmap = null;
 
+        // Resample the saved image to fit the ImageView
+        mResultsBitmap = processImage();
 
-        // Detect the faces and overlay the appropriate emoji
-        mResultsBitmap = Emojifier.detectFacesandOverlayEmoji(this, mResultsBitmap);
+        // If the capture could not be read, show a Toast and reset the app
+        if (mResultsBitmap == null) {
+            Toast.makeText(this, R.string.error, Toast.LENGTH_SHORT).show();
+            clearImage();
+            return;
+        }
 
         // Set the new bitmap to the ImageView
         mImageView.setImageBitmap(mResultsBitmap);
+
+        // Detect the faces in the background and overlay the appropriate emoji
+        mDetectTask = new DetectTask(mResultsBitmap);
+        mDetectTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    /**
+     * Resamples the captured image. If memory runs out, the processing profile is downgraded
+     * and the image is decoded again at the smaller size.
+     *
+     * @return The resampled bitmap, or null if the image could not be read.
+     */
+    private Bitmap processImage() {
+        while (true) {
+            try {
+                return BitmapUtils.resamplePic(this, mTempPhotoPath);
+            } catch (OutOfMemoryError e) {
+                Timber.w(e, "processImage: out of memory");
+                if (!ProcessingProfile.downgrade(this)) {
+                    return null;
+                }
+            }
+        }
+    }
 
     /**
-     * OnClick method for the save button.
+     * OnClick method for the save button, bakes the emojis into the photo and saves it.
      */
     @OnClick(R.id.save_button)
     public void saveMe() {
-        // Delete the temporary image file
-        BitmapUtils.deleteImageFile(this, mTempPhotoPath);
-
-        // Save the image
-        BitmapUtils.saveImage(this, mResultsBitmap);
+        startBake(false);
     }
 
     /**
-     * OnClick method for the share button, saves and shares the new bitmap.
+     * OnClick method for the share button, bakes, saves and shares the new bitmap.
      */
     @OnClick(R.id.share_button)
     public void shareMe() {
-        // Delete the temporary image file
-        BitmapUtils.deleteImageFile(this, mTempPhotoPath);
+        startBake(true);
+    }
+
+    /**
+     * Starts baking the emojis into the full resolution photo in the background.
+     *
+     * @param share Whether to share the image once it is saved.
+     */
+    private void startBake(boolean share) {
+        // Ignore repeated taps while an image is being saved
+        if (mBakeTask != null) {
+            return;
+        }
 
-        // Save the image
-        BitmapUtils.saveImage(this, mResultsBitmap);
+        mProgressBar.setVisibility(View.VISIBLE);
+        mBakeTask = new BakeTask(mTempPhotoPath, mResultsBitmap, mImageView.getEmojis(), share);
+        mBakeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Starts emojifying a video in the background, showing progress until it is saved.
+     *
+     * @param videoUri The video to emojify.
+     */
+    private void startVideoTask(Uri videoUri) {
+        File outputFile = VideoEmojifier.createOutputFile();
+        if (outputFile == null) {
+            Toast.makeText(this, R.string.video_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        mEmojifyButton.setVisibility(View.GONE);
+        mVideoButton.setVisibility(View.GONE);
+        mTitleTextView.setVisibility(View.GONE);
+        mProgressBar.setVisibility(View.VISIBLE);
+
+        mVideoTask = new VideoTask(videoUri, outputFile);
+        mVideoTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-        // Share the image
-        BitmapUtils.shareImage(this, mTempPhotoPath);
+    /**
+     * @return Whether this device can emojify videos.
+     */
+    private static boolean isVideoSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
     }
 
     /**
@@ -225,9 +414,22 @@ public class MainActivity extends AppCompatActivity {
      */
     @OnClick(R.id.clear_button)
     public void clearImage() {
+        // Stop waiting for the warm-up, if the photo was not processed yet
+        mWaitingForWarmUp = false;
+        mProgressBar.setVisibility(mBakeTask != null ? View.VISIBLE : View.GONE);
+
+        // Stop detecting faces in the photo
+        if (mDetectTask != null) {
+            mDetectTask.cancel(false);
+            mDetectTask = null;
+        }
+
         // Clear the image and toggle the view visibility
         mImageView.setImageResource(0);
+        mImageView.clearEmojis();
+        mResultsBitmap = null;
         mEmojifyButton.setVisibility(View.VISIBLE);
+        mVideoButton.setVisibility(isVideoSupported() ? View.VISIBLE : View.GONE);
         mTitleTextView.setVisibility(View.VISIBLE);
         mShareFab.setVisibility(View.GONE);
         mSaveFab.setVisibility(View.GONE);
@@ -236,4 +438,232 @@ public class MainActivity extends AppCompatActivity {
         // Delete the temporary image file
         BitmapUtils.deleteImageFile(this, mTempPhotoPath);
     }
+
+    /**
+     * Detects the faces of the displayed photo in the background, and adds each emoji to the
+     * ImageView as soon as its face is classified. If memory runs out, the processing profile
+     * is downgraded and the faces are detected again in a smaller copy of the photo, with the
+     * emojis scaled back to the displayed photo.
+     */
+    private class DetectTask extends AsyncTask<Void, Emojifier.Placement, Integer> {
+
+        private final Context mAppContext = getApplicationContext();
+        private final String mImagePath = mTempPhotoPath;
+        private final Bitmap mDisplayedPicture;
+
+        DetectTask(Bitmap displayedPicture) {
+            mDisplayedPicture = displayedPicture;
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            Bitmap picture = mDisplayedPicture;
+            while (true) {
+                try {
+                    // After a failed attempt, decode the photo again under the smaller profile
+                    if (picture == null) {
+                        picture = BitmapUtils.resamplePic(mAppContext, mImagePath);
+                        if (picture == null) {
+                            return null;
+                        }
+                    }
+
+                    final float scale = (float) mDisplayedPicture.getWidth() / picture.getWidth();
+                    return Emojifier.detectFaces(mAppContext, picture,
+                            new Emojifier.OnEmojiPlacedListener() {
+                                @Override
+                                public void onEmojiPlaced(Emojifier.Placement placement) {
+                                    publishProgress(scalePlacement(placement, scale));
+                                }
+                            });
+                } catch (OutOfMemoryError e) {
+                    Timber.w(e, "DetectTask: out of memory");
+                    picture = null;
+
+                    // Drop the emojis of the failed attempt, an empty update clears them
+                    publishProgress();
+
+                    if (!ProcessingProfile.downgrade(mAppContext)) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Scales a placement from the coordinates of the detected picture to the displayed one.
+         */
+        private Emojifier.Placement scalePlacement(Emojifier.Placement placement, float scale) {
+            if (scale == 1f) {
+                return placement;
+            }
+            RectF bounds = new RectF(placement.getBounds());
+            bounds.left *= scale;
+            bounds.top *= scale;
+            bounds.right *= scale;
+            bounds.bottom *= scale;
+            return new Emojifier.Placement(placement.getEmoji(), bounds);
+        }
+
+        @Override
+        protected void onProgressUpdate(Emojifier.Placement... placements) {
+            if (isCancelled()) {
+                return;
+            }
+            if (placements.length == 0) {
+                mImageView.clearEmojis();
+                return;
+            }
+            for (Emojifier.Placement placement : placements) {
+                mImageView.addEmoji(placement);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer faceCount) {
+            mDetectTask = null;
+
+            // If the photo could not be processed, show a Toast and keep saving and sharing hidden
+            if (faceCount == null) {
+                mImageView.clearEmojis();
+                Toast.makeText(MainActivity.this, R.string.error, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Show a Toast message if there is nothing to emojify
+            if (faceCount == Emojifier.DETECTOR_UNAVAILABLE) {
+                Toast.makeText(MainActivity.this, R.string.detector_unavailable,
+                        Toast.LENGTH_SHORT).show();
+            } else if (faceCount == 0) {
+                Toast.makeText(MainActivity.this, R.string.no_faces_message,
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            // The result is complete, it can now be saved or shared
+            mSaveFab.setVisibility(View.VISIBLE);
+            mShareFab.setVisibility(View.VISIBLE);
+
+            // Record how long the user waited for the first result
+            WarmUp.recordFirstResult(mAppContext, mColdRequest,
+                    SystemClock.elapsedRealtime() - mRequestTime);
+        }
+    }
+
+    /**
+     * Bakes the emojis into the photo, decoded at full resolution, and saves it in the
+     * background. If the capture is gone, the displayed photo is baked instead.
+     */
+    private class BakeTask extends AsyncTask<Void, Void, String> {
+
+        private final Context mAppContext = getApplicationContext();
+        private final String mImagePath;
+        private final Bitmap mDisplayedPicture;
+        private final List<Emojifier.Placement> mPlacements;
+        private final boolean mShare;
+
+        BakeTask(String imagePath, Bitmap displayedPicture, List<Emojifier.Placement> placements,
+                 boolean share) {
+            mImagePath = imagePath;
+            mDisplayedPicture = displayedPicture;
+            mPlacements = placements;
+            mShare = share;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            while (true) {
+                try {
+                    Bitmap picture = BitmapUtils.decodeFullResolution(mAppContext, mImagePath);
+                    float scale = 1f;
+                    if (picture != null) {
+                        scale = (float) picture.getWidth() / mDisplayedPicture.getWidth();
+                    } else {
+                        // Never draw into the displayed photo, it has no emojis of its own
+                        picture = mDisplayedPicture.copy(mDisplayedPicture.getConfig(), true);
+                    }
+
+                    Bitmap result = Emojifier.overlayEmojis(mAppContext, picture, mPlacements,
+                            scale);
+                    return BitmapUtils.saveImage(mAppContext, result);
+                } catch (OutOfMemoryError e) {
+                    Timber.w(e, "BakeTask: out of memory");
+                    if (!ProcessingProfile.downgrade(mAppContext)) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String savedImagePath) {
+            mBakeTask = null;
+            mProgressBar.setVisibility(View.GONE);
+
+            if (savedImagePath == null) {
+                Toast.makeText(MainActivity.this, R.string.not_saved, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            // Show a Toast with the save location
+            String savedMessage = getString(R.string.saved_message, savedImagePath);
+            Toast.makeText(MainActivity.this, savedMessage, Toast.LENGTH_SHORT).show();
+
+            // Share the image
+            if (mShare) {
+                BitmapUtils.shareImage(MainActivity.this, savedImagePath);
+            }
+        }
+    }
+
+    /**
+     * Emojifies a video in the background and reports where it was saved and how fast it went.
+     */
+    private class VideoTask extends AsyncTask<Void, Void, VideoEmojifier.Report> {
+
+        private final Context mAppContext = getApplicationContext();
+        private final Uri mVideoUri;
+        private final File mOutputFile;
+
+        VideoTask(Uri videoUri, File outputFile) {
+            mVideoUri = videoUri;
+            mOutputFile = outputFile;
+        }
+
+        @Override
+        protected VideoEmojifier.Report doInBackground(Void... params) {
+            try {
+                VideoEmojifier.Report report = VideoEmojifier.emojify(mAppContext, mVideoUri,
+                        mOutputFile, VideoEmojifier.DEFAULT_DETECTION_INTERVAL);
+
+                // Add the video to the system gallery
+                BitmapUtils.galleryAddPic(mAppContext, mOutputFile.getAbsolutePath());
+                return report;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                // Any failure is reported the same way, the partial output is already deleted
+                Timber.e(e, "VideoTask: failed to emojify " + mVideoUri);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(VideoEmojifier.Report report) {
+            mVideoTask = null;
+            mProgressBar.setVisibility(View.GONE);
+            mEmojifyButton.setVisibility(View.VISIBLE);
+            mVideoButton.setVisibility(View.VISIBLE);
+            mTitleTextView.setVisibility(View.VISIBLE);
+
+            if (report == null) {
+                Toast.makeText(MainActivity.this, R.string.video_failed, Toast.LENGTH_SHORT)
+                        .show();
+                return;
+            }
+
+            // Show a Toast with the save location and the throughput
+            String savedMessage = getString(R.string.video_saved_message,
+                    mOutputFile.getAbsolutePath(), report.getFrameCount(),
+                    report.getFramesPerSecond());
+            Toast.makeText(MainActivity.this, savedMessage, Toast.LENGTH_LONG).show();
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.app.ActivityManagerCompat;
+
+import timber.log.Timber;
+
+//A ProcessingProfile bounds how much memory the image processing may use: the largest dimension
+//a photo is decoded at, the bitmap config, the byte quota of the capture cache, the bytes the
+//video frame buffers may occupy and the number of worker threads. The baseline profile is picked
+//from the heap available to the app. The current profile is downgraded from it when the system
+//reports memory pressure while the app is running, and is restored when a new screen is created.
+//A downgrade after an allocation failed also lowers the floor restore() goes back to, so the app
+//does not return to a profile that already ran out of memory in this process.
+enum ProcessingProfile {
+
+    // Profiles are ordered from the most to the least memory hungry
+    HIGH(2048, Bitmap.Config.ARGB_8888, 40L * 1024 * 1024, 48L * 1024 * 1024, 4),
+    MEDIUM(1280, Bitmap.Config.ARGB_8888, 20L * 1024 * 1024, 24L * 1024 * 1024, 2),
+    LOW(800, Bitmap.Config.RGB_565, 10L * 1024 * 1024, 10L * 1024 * 1024, 1);
+
+    // Heap sizes, in megabytes, from which the higher profiles are picked
+    private static final int HIGH_MEMORY_CLASS = 128;
+    private static final int MEDIUM_MEMORY_CLASS = 64;
+
+    private static ProcessingProfile sBaseline;
+    private static ProcessingProfile sFloor;
+    private static ProcessingProfile sCurrent;
+
+    private final int mMaxDecodeDimension;
+    private final Bitmap.Config mBitmapConfig;
+    private final long mCacheQuotaBytes;
+    private final long mVideoBudgetBytes;
+    private final int mParallelism;
+
+    ProcessingProfile(int maxDecodeDimension, Bitmap.Config bitmapConfig, long cacheQuotaBytes,
+                      long videoBudgetBytes, int parallelism) {
+        mMaxDecodeDimension = maxDecodeDimension;
+        mBitmapConfig = bitmapConfig;
+        mCacheQuotaBytes = cacheQuotaBytes;
+        mVideoBudgetBytes = videoBudgetBytes;
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Returns the current profile, picking it from the available heap on the first call.
+     *
+     * @param context The application context.
+     * @return The current processing profile.
+     */
+    static synchronized ProcessingProfile get(Context context) {
+        if (sBaseline == null) {
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int memoryClass = activityManager.getMemoryClass();
+            boolean lowRam = ActivityManagerCompat.isLowRamDevice(activityManager);
+
+            if (lowRam || memoryClass < MEDIUM_MEMORY_CLASS) {
+                sBaseline = LOW;
+            } else if (memoryClass < HIGH_MEMORY_CLASS) {
+                sBaseline = MEDIUM;
+            } else {
+                sBaseline = HIGH;
+            }
+            sFloor = sBaseline;
+            sCurrent = sBaseline;
+
+            Timber.d("ProcessingProfile: memoryClass = " + memoryClass + " MB, lowRam = "
+                    + lowRam + ", using " + sCurrent.name());
+        }
+        return sCurrent;
+    }
+
+    /**
+     * Switches to the next smaller profile, after an allocation failed. The switch is kept by
+     * restore().
+     *
+     * @param context The application context.
+     * @return False if the current profile is already the smallest one.
+     */
+    static synchronized boolean downgrade(Context context) {
+        ProcessingProfile current = get(context);
+        if (current.ordinal() == values().length - 1) {
+            return false;
+        }
+        sCurrent = values()[current.ordinal() + 1];
+        if (sCurrent.ordinal() > sFloor.ordinal()) {
+            sFloor = sCurrent;
+        }
+        Timber.w("ProcessingProfile: downgraded from " + current.name() + " to "
+                + sCurrent.name());
+        return true;
+    }
+
+    /**
+     * Applies the memory pressure reported while the app is running: one step below the
+     * restored profile when memory runs low, two steps when it is critical. Repeated reports of the
+     * same level do not compound.
+     *
+     * @param context  The application context.
+     * @param critical Whether the system reported critically low memory.
+     * @return True if the current profile was downgraded.
+     */
+    static synchronized boolean applyPressure(Context context, boolean critical) {
+        ProcessingProfile current = get(context);
+        int target = Math.min(sFloor.ordinal() + (critical ? 2 : 1), values().length - 1);
+        if (current.ordinal() >= target) {
+            return false;
+        }
+        sCurrent = values()[target];
+        Timber.w("ProcessingProfile: memory pressure, downgraded from " + current.name()
+                + " to " + sCurrent.name());
+        return true;
+    }
+
+    /**
+     * Undoes the memory pressure once it is over, going back to the baseline picked from the
+     * available heap, or to the profile downgrade() left after an allocation failed.
+     *
+     * @param context The application context.
+     */
+    static synchronized void restore(Context context) {
+        ProcessingProfile current = get(context);
+        if (current != sFloor) {
+            sCurrent = sFloor;
+            Timber.d("ProcessingProfile: restored from " + current.name() + " to "
+                    + sCurrent.name());
+        }
+    }
+
+    /**
+     * @return The largest width or height, in pixels, a photo is decoded at.
+     */
+    int getMaxDecodeDimension() {
+        return mMaxDecodeDimension;
+    }
+
+    /**
+     * @return The config of the decoded photos.
+     */
+    Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+
+    /**
+     * @return The maximum number of bytes the temporary captures may occupy.
+     */
+    long getCacheQuotaBytes() {
+        return mCacheQuotaBytes;
+    }
+
+    /**
+     * @return The maximum number of bytes the frame buffers of a video emojify may occupy.
+     */
+    long getVideoBudgetBytes() {
+        return mVideoBudgetBytes;
+    }
+
+    /**
+     * @return The maximum number of worker threads used for processing.
+     */
+    int getParallelism() {
+        return Math.min(mParallelism, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,1356 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+//The VideoEmojifier emojifies a video clip frame by frame. The work is split in four pipelined
+//stages, each running on its own thread(s) and connected by blocking queues:
+//
+//  decode    -> MediaExtractor + MediaCodec decoder, copies each frame into a pooled YUV buffer
+//  detect    -> runs the tracking face detector on every Nth frame only, and interpolates the
+//               emoji placements of the frames in between from the two surrounding detections
+//  composite -> draws the emojis into each frame, converting only the pixels under the emojis
+//               to ARGB and back, through a reusable per-worker bitmap
+//  encode    -> MediaCodec encoder + MediaMuxer, puts the frames back in order and writes them,
+//               copying the audio track through to the muxer as it goes
+//
+//The frame buffers come from a fixed pool, so a slow stage makes the ones before it wait instead
+//of piling up decoded frames. The pool, the number of composite workers and the frame size are
+//fitted to the memory budget of the processing profile, and a run that still runs out of memory
+//is retried under a smaller profile. Frames are kept in the encoder's YUV 4:2:0 layout from the
+//moment they are decoded; the detector only needs the luma plane, which comes first in every
+//layout. From API 21 the codecs are read and written through Image planes, so any decoder output
+//and encoder input layout works.
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class VideoEmojifier {
+
+    // Run a full detection on one frame out of this many
+    static final int DEFAULT_DETECTION_INTERVAL = 5;
+
+    private static final String OUTPUT_MIME_TYPE = "video/avc";
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    private static final int BITS_PER_PIXEL = 4;
+    private static final long TIMEOUT_US = 10000;
+
+    // Frames are not downscaled below this size to fit the memory budget
+    private static final int MIN_FRAME_DIMENSION = 64;
+
+    // The YUV 4:2:0 layouts the frames are kept in, and the codec buffers can be read and
+    // written in before API 21
+    private static final int COLOR_FORMAT_PLANAR =
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+    private static final int COLOR_FORMAT_SEMI_PLANAR =
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+
+    // Any YUV 4:2:0 layout, read and written through Image planes from API 21
+    private static final int COLOR_FORMAT_FLEXIBLE =
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+
+    // Read buffer for the audio samples, when the track does not tell its largest sample
+    private static final int DEFAULT_AUDIO_BUFFER_SIZE = 256 * 1024;
+
+    // Output format keys that have no constant before API 23
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+    private static final String KEY_ROTATION = "rotation-degrees";
+
+    /**
+     * The throughput of one run of the pipeline.
+     */
+    static class Report {
+        private final int mFrameCount;
+        private final int mDetectionCount;
+        private final long mElapsedMillis;
+        private final long mDecodeMillis;
+        private final long mDetectMillis;
+        private final long mCompositeMillis;
+        private final long mEncodeMillis;
+
+        private Report(int frameCount, int detectionCount, long elapsedMillis, long decodeMillis,
+                       long detectMillis, long compositeMillis, long encodeMillis) {
+            mFrameCount = frameCount;
+            mDetectionCount = detectionCount;
+            mElapsedMillis = elapsedMillis;
+            mDecodeMillis = decodeMillis;
+            mDetectMillis = detectMillis;
+            mCompositeMillis = compositeMillis;
+            mEncodeMillis = encodeMillis;
+        }
+
+        int getFrameCount() {
+            return mFrameCount;
+        }
+
+        float getFramesPerSecond() {
+            return mElapsedMillis > 0 ? mFrameCount * 1000f / mElapsedMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mFrameCount + " frames in " + mElapsedMillis + " ms ("
+                    + String.format(Locale.US, "%.1f", getFramesPerSecond())
+                    + " fps), " + mDetectionCount + " detections; busy time per stage: decode "
+                    + mDecodeMillis + " ms, detect " + mDetectMillis + " ms, composite "
+                    + mCompositeMillis + " ms, encode " + mEncodeMillis + " ms";
+        }
+    }
+
+    // A pooled frame buffer, travelling through the pipeline
+    private static class VideoFrame {
+        final byte[] mYuv;
+        int mIndex;
+        long mPresentationTimeUs;
+        List<Emojifier.Placement> mPlacements;
+
+        VideoFrame(byte[] yuv) {
+            mYuv = yuv;
+        }
+    }
+
+    // Marks the end of the stream in the queues
+    private static final VideoFrame END_OF_STREAM = new VideoFrame(null);
+
+    private final Context mContext;
+    private final Uri mInput;
+    private final File mOutput;
+    private final int mDetectionInterval;
+    private int mWorkerCount;
+
+    private MediaExtractor mExtractor;
+    private MediaFormat mInputFormat;
+    private MediaFormat mAudioFormat;
+    private int mAudioTrack = -1;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int mRotation;
+    private int mSampleSize;
+    private int mWidth;
+    private int mHeight;
+    private int mEncoderColorFormat;
+    private int mFrameColorFormat;
+
+    private BlockingQueue<VideoFrame> mFreeFrames;
+    private BlockingQueue<VideoFrame> mDecodedFrames;
+    private BlockingQueue<VideoFrame> mDetectedFrames;
+    private BlockingQueue<VideoFrame> mCompositedFrames;
+
+    private final List<Thread> mStageThreads = new ArrayList<>();
+    private Thread mEncodeThread;
+    private volatile Throwable mFailure;
+
+    private final AtomicLong mDecodeNanos = new AtomicLong();
+    private final AtomicLong mDetectNanos = new AtomicLong();
+    private final AtomicLong mCompositeNanos = new AtomicLong();
+    private final AtomicLong mEncodeNanos = new AtomicLong();
+    private int mDetectionCount;
+
+    /**
+     * Method for emojifying every face of a video clip. Must not be called on the main thread.
+     * If memory runs out, the processing profile is downgraded and the clip is emojified again.
+     *
+     * @param context           The application context.
+     * @param input             The video to emojify.
+     * @param output            The MP4 file to write.
+     * @param detectionInterval Run a full detection on one frame out of this many.
+     * @return The throughput report.
+     * @throws IOException Thrown if the video can not be decoded, processed or encoded.
+     */
+    static Report emojify(Context context, Uri input, File output, int detectionInterval)
+            throws IOException {
+        Context appContext = context.getApplicationContext();
+        while (true) {
+            try {
+                return new VideoEmojifier(appContext, input, output, detectionInterval).run();
+            } catch (IOException e) {
+                // Retry with smaller frames and fewer buffers, unless there is no smaller profile
+                if (!(e.getCause() instanceof OutOfMemoryError)
+                        || !ProcessingProfile.downgrade(appContext)) {
+                    throw e;
+                }
+                Timber.w(e, "VideoEmojifier: out of memory, retrying");
+            }
+        }
+    }
+
+    /**
+     * Creates the file for an emojified video in the output directory.
+     *
+     * @return The new file, or null if the output directory is unavailable.
+     */
+    static File createOutputFile() {
+        File storageDir = ImageStorage.getOutputDir();
+        if (storageDir == null) {
+            return null;
+        }
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
+                Locale.getDefault()).format(new Date());
+        return new File(storageDir, "MP4_" + timeStamp + ".mp4");
+    }
+
+    private VideoEmojifier(Context context, Uri input, File output, int detectionInterval) {
+        mContext = context;
+        mInput = input;
+        mOutput = output;
+        mDetectionInterval = Math.max(1, detectionInterval);
+    }
+
+    private Report run() throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        // Make sure the face model is available before decoding anything
+        if (!Emojifier.getDetector(mContext).isOperational()) {
+            throw new IOException("Face detector is not operational");
+        }
+
+        openInput();
+        try {
+            fitToProfile();
+        } catch (IOException e) {
+            mExtractor.release();
+            throw e;
+        }
+
+        // Find an encoder for a YUV layout we can write
+        String encoderName = selectEncoder();
+        if (encoderName == null) {
+            mExtractor.release();
+            throw new IOException("No " + OUTPUT_MIME_TYPE + " encoder with a supported color"
+                    + " format");
+        }
+
+        MediaCodec encoder = null;
+        MediaMuxer muxer = null;
+        MediaExtractor audioExtractor = null;
+        Encoder sink = null;
+        try {
+            // Allocate the frame pool: enough frames for the ones held back between two
+            // detections, plus a couple in flight in every other stage
+            int poolSize = getPoolSize();
+            mFreeFrames = new ArrayBlockingQueue<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                mFreeFrames.add(new VideoFrame(new byte[mWidth * mHeight * 3 / 2]));
+            }
+            mDecodedFrames = new ArrayBlockingQueue<>(poolSize + 1);
+            mDetectedFrames = new ArrayBlockingQueue<>(poolSize + mWorkerCount);
+            mCompositedFrames = new ArrayBlockingQueue<>(poolSize + mWorkerCount);
+
+            encoder = MediaCodec.createByCodecName(encoderName);
+            encoder.configure(createOutputFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            muxer = new MediaMuxer(mOutput.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (mRotation != 0) {
+                muxer.setOrientationHint(mRotation);
+            }
+            if (mAudioTrack >= 0) {
+                audioExtractor = new MediaExtractor();
+                audioExtractor.setDataSource(mContext, mInput, null);
+                audioExtractor.selectTrack(mAudioTrack);
+            }
+            sink = new Encoder(encoder, muxer, audioExtractor);
+
+            // Start the stages, the encode stage runs on this thread
+            mEncodeThread = Thread.currentThread();
+            startStage("decode", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    decode();
+                }
+            });
+            startStage("detect", new Stage() {
+                @Override
+                public void run() throws Exception {
+                    detect();
+                }
+            });
+            for (int i = 0; i < mWorkerCount; i++) {
+                startStage("composite-" + i, new Stage() {
+                    @Override
+                    public void run() throws Exception {
+                        composite();
+                    }
+                });
+            }
+
+            sink.encodeAll();
+        } catch (InterruptedException | IOException | RuntimeException | OutOfMemoryError e) {
+            // Handled like a failed stage, so the partial output is deleted below
+            if (mFailure == null) {
+                mFailure = e;
+            }
+        } finally {
+            stopStages();
+
+            // The decode stage releases the extractor, unless it never started
+            if (mStageThreads.isEmpty()) {
+                mExtractor.release();
+            }
+            if (encoder != null) {
+                releaseQuietly(encoder);
+            }
+            if (audioExtractor != null) {
+                audioExtractor.release();
+            }
+            if (muxer != null) {
+                try {
+                    if (sink != null && sink.mMuxerStarted) {
+                        muxer.stop();
+                    }
+                } catch (IllegalStateException e) {
+                    // The MP4 was not finalized, so it is not playable
+                    Timber.w(e, "VideoEmojifier: failed to stop the muxer");
+                    if (mFailure == null) {
+                        mFailure = e;
+                    }
+                }
+                muxer.release();
+            }
+        }
+
+        // A clip without a single frame is not a result either
+        if (mFailure == null && (sink == null || sink.mFrameCount == 0 || !sink.mMuxerStarted)) {
+            mFailure = new IOException("No frames were encoded from " + mInput);
+        }
+
+        if (mFailure != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mOutput.delete();
+            if (mFailure instanceof IOException) {
+                throw (IOException) mFailure;
+            }
+            throw new IOException("Video emojify failed", mFailure);
+        }
+
+        Report report = new Report(sink.mFrameCount, mDetectionCount,
+                SystemClock.elapsedRealtime() - start, mDecodeNanos.get() / 1000000,
+                mDetectNanos.get() / 1000000, mCompositeNanos.get() / 1000000,
+                mEncodeNanos.get() / 1000000);
+        Timber.d("VideoEmojifier: " + report);
+        return report;
+    }
+
+    /**
+     * Opens the input, selects its first video track and finds its first audio track.
+     */
+    private void openInput() throws IOException {
+        mExtractor = new MediaExtractor();
+        try {
+            mExtractor.setDataSource(mContext, mInput, null);
+            for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+                MediaFormat format = mExtractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/") && mAudioTrack < 0) {
+                    // The audio is copied as is, by an extractor of its own
+                    mAudioTrack = i;
+                    mAudioFormat = format;
+                } else if (mime != null && mime.startsWith("video/") && mInputFormat == null) {
+                    mExtractor.selectTrack(i);
+                    mInputFormat = format;
+
+                    mSourceWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+                    mSourceHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+
+                    // The clockwise rotation the player applies to show the frames upright
+                    if (format.containsKey(KEY_ROTATION)) {
+                        mRotation = (format.getInteger(KEY_ROTATION) % 360 + 360) % 360 / 90 * 90;
+                    }
+                }
+            }
+            if (mInputFormat == null) {
+                throw new IOException("No video track in " + mInput);
+            }
+        } catch (IOException | RuntimeException e) {
+            mExtractor.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sizes the frames, the frame pool and the composite workers to the current profile. Frames
+     * larger than its largest dimension are downscaled; while the buffers still exceed its video
+     * budget, fewer composite workers are used, then the frames are downscaled further.
+     */
+    private void fitToProfile() throws IOException {
+        ProcessingProfile profile = ProcessingProfile.get(mContext);
+        int maxDimension = profile.getMaxDecodeDimension();
+        long budget = profile.getVideoBudgetBytes();
+
+        mSampleSize = 1;
+        while (mSourceWidth / mSampleSize > maxDimension
+                || mSourceHeight / mSampleSize > maxDimension) {
+            mSampleSize *= 2;
+        }
+        mWorkerCount = profile.getParallelism();
+
+        while (true) {
+            // The 4:2:0 chroma planes need even dimensions
+            mWidth = (mSourceWidth / mSampleSize) & ~1;
+            mHeight = (mSourceHeight / mSampleSize) & ~1;
+            if (mWidth < MIN_FRAME_DIMENSION || mHeight < MIN_FRAME_DIMENSION) {
+                throw new IOException(mSourceWidth + " x " + mSourceHeight
+                        + " video does not fit the " + profile.name() + " profile");
+            }
+            if (getBufferBytes() <= budget) {
+                break;
+            }
+            if (mWorkerCount > 1) {
+                mWorkerCount--;
+            } else {
+                mSampleSize *= 2;
+            }
+        }
+
+        Timber.d("VideoEmojifier: " + mSourceWidth + " x " + mSourceHeight + " emojified at "
+                + mWidth + " x " + mHeight + " with " + mWorkerCount + " workers and "
+                + getPoolSize() + " frames, " + getBufferBytes() / 1024 + " KB");
+    }
+
+    /**
+     * @return The number of pooled frames: enough for the ones held back between two
+     * detections, plus a couple in flight in every other stage.
+     */
+    private int getPoolSize() {
+        return mDetectionInterval + 2 * mWorkerCount + 2;
+    }
+
+    /**
+     * @return The worst case of the bytes held by the pipeline buffers.
+     */
+    private long getBufferBytes() {
+        long pixels = (long) mWidth * mHeight;
+
+        // The decoder output is copied once at the full source size
+        long decodeBytes = (long) mSourceWidth * mSourceHeight * 3 / 2;
+
+        // Each worker's bitmap and pixel buffer can grow up to a whole ARGB frame
+        long workerBytes = pixels * 4 * 2;
+
+        return decodeBytes + getPoolSize() * (pixels * 3 / 2) + mWorkerCount * workerBytes;
+    }
+
+    /**
+     * Finds an encoder for the output type that accepts a YUV layout we can write. From API 21
+     * that includes the flexible layout, written through Image planes.
+     *
+     * @return The name of the encoder, or null if there is none.
+     */
+    @SuppressWarnings("deprecation")
+    private String selectEncoder() {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(OUTPUT_MIME_TYPE)) {
+                    continue;
+                }
+                for (int colorFormat : info.getCapabilitiesForType(type).colorFormats) {
+                    if (colorFormat == COLOR_FORMAT_SEMI_PLANAR
+                            || colorFormat == COLOR_FORMAT_PLANAR
+                            || (colorFormat == COLOR_FORMAT_FLEXIBLE
+                            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)) {
+                        mEncoderColorFormat = colorFormat;
+
+                        // Keep the frames in the encoder's layout, when it has a fixed one
+                        mFrameColorFormat = colorFormat == COLOR_FORMAT_PLANAR
+                                ? COLOR_FORMAT_PLANAR : COLOR_FORMAT_SEMI_PLANAR;
+                        return info.getName();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private MediaFormat createOutputFormat() {
+        int frameRate = getInputFrameRate();
+        MediaFormat format = MediaFormat.createVideoFormat(OUTPUT_MIME_TYPE, mWidth, mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mEncoderColorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mWidth * mHeight * BITS_PER_PIXEL);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        return format;
+    }
+
+    /**
+     * @return The frame rate of the input, which some extractors store as a float, or
+     * DEFAULT_FRAME_RATE if it is missing.
+     */
+    private int getInputFrameRate() {
+        if (!mInputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return DEFAULT_FRAME_RATE;
+        }
+        int frameRate;
+        try {
+            frameRate = mInputFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            try {
+                frameRate = Math.round(mInputFormat.getFloat(MediaFormat.KEY_FRAME_RATE));
+            } catch (ClassCastException notFloat) {
+                return DEFAULT_FRAME_RATE;
+            }
+        }
+        return frameRate > 0 ? frameRate : DEFAULT_FRAME_RATE;
+    }
+
+    // The body of a pipeline stage thread
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private void startStage(String name, final Stage stage) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stage.run();
+                } catch (InterruptedException e) {
+                    // Stopped because another stage failed
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        }, "VideoEmojifier-" + name);
+        mStageThreads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Records the first failure and wakes up the encode stage, which stops the others.
+     */
+    private synchronized void fail(Throwable t) {
+        Timber.e(t, "VideoEmojifier: stage failed");
+        if (mFailure == null) {
+            mFailure = t;
+        }
+        mEncodeThread.interrupt();
+    }
+
+    private void stopStages() {
+        for (Thread thread : mStageThreads) {
+            thread.interrupt();
+        }
+        for (Thread thread : mStageThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Clear an interrupt left over from a failed stage
+        //noinspection ResultOfMethodCallIgnored
+        Thread.interrupted();
+    }
+
+    /**
+     * Decode stage: decodes the video track and copies each frame into a pooled buffer, in the
+     * layout of the encoder.
+     */
+    @SuppressWarnings("deprecation")
+    private void decode() throws IOException, InterruptedException {
+        MediaCodec decoder = null;
+        try {
+            decoder = MediaCodec.createDecoderByType(mInputFormat.getString(MediaFormat.KEY_MIME));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // Every decoder can output a layout that is readable through Image planes
+                mInputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, COLOR_FORMAT_FLEXIBLE);
+            }
+            decoder.configure(mInputFormat, null, null, 0);
+            decoder.start();
+
+            ByteBuffer[] inputBuffers = decoder.getInputBuffers();
+            ByteBuffer[] outputBuffers = decoder.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MediaFormat outputFormat = null;
+            byte[] scratch = new byte[0];
+            int frameIndex = 0;
+            boolean inputDone = false;
+
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                // Feed the decoder
+                if (!inputDone) {
+                    int inputIndex = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = mExtractor.readSampleData(inputBuffers[inputIndex], 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(inputIndex, 0, size,
+                                    mExtractor.getSampleTime(), 0);
+                            mExtractor.advance();
+                        }
+                    }
+                }
+
+                // Collect the decoded frames
+                int outputIndex = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = decoder.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    outputFormat = decoder.getOutputFormat();
+                } else if (outputIndex >= 0) {
+                    if (info.size > 0) {
+                        if (outputFormat == null) {
+                            outputFormat = decoder.getOutputFormat();
+                        }
+
+                        // Wait for a free buffer outside of the busy time
+                        VideoFrame frame = mFreeFrames.take();
+
+                        long start = System.nanoTime();
+                        boolean copied = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                                && copyDecodedImage(decoder, outputIndex, frame.mYuv);
+                        if (!copied) {
+                            if (scratch.length < info.size) {
+                                scratch = new byte[info.size];
+                            }
+                            ByteBuffer buffer = outputBuffers[outputIndex];
+                            buffer.position(info.offset);
+                            buffer.get(scratch, 0, info.size);
+                            copyDecodedFrame(scratch, outputFormat, frame.mYuv);
+                        }
+                        frame.mIndex = frameIndex++;
+                        frame.mPresentationTimeUs = info.presentationTimeUs;
+                        mDecodeNanos.addAndGet(System.nanoTime() - start);
+
+                        mDecodedFrames.put(frame);
+                    }
+                    decoder.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+
+            mDecodedFrames.put(END_OF_STREAM);
+        } finally {
+            // The extractor is ours from the moment the stage starts, even if no decoder exists
+            if (decoder != null) {
+                releaseQuietly(decoder);
+            }
+            mExtractor.release();
+        }
+    }
+
+    /**
+     * Copies a decoded frame into the tightly packed layout of the encoder, keeping one sample
+     * out of mSampleSize in each direction.
+     */
+    private void copyDecodedFrame(byte[] src, MediaFormat format, byte[] dst) throws IOException {
+        int srcColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        if (srcColorFormat != COLOR_FORMAT_PLANAR && srcColorFormat != COLOR_FORMAT_SEMI_PLANAR) {
+            throw new IOException("Unsupported decoder color format " + srcColorFormat);
+        }
+        int stride = format.containsKey(KEY_STRIDE) ? format.getInteger(KEY_STRIDE) : 0;
+        int sliceHeight =
+                format.containsKey(KEY_SLICE_HEIGHT) ? format.getInteger(KEY_SLICE_HEIGHT) : 0;
+        if (stride < mSourceWidth) {
+            stride = format.getInteger(MediaFormat.KEY_WIDTH);
+        }
+        if (sliceHeight < mSourceHeight) {
+            sliceHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+        int step = mSampleSize;
+
+        // Luma, row by row
+        for (int y = 0; y < mHeight; y++) {
+            int srcRow = y * step * stride;
+            if (step == 1) {
+                System.arraycopy(src, srcRow, dst, y * mWidth, mWidth);
+                continue;
+            }
+            for (int x = 0; x < mWidth; x++) {
+                dst[y * mWidth + x] = src[srcRow + x * step];
+            }
+        }
+
+        // Chroma, sample by sample
+        for (int cy = 0; cy < mHeight / 2; cy++) {
+            for (int cx = 0; cx < mWidth / 2; cx++) {
+                dst[uIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)] =
+                        src[uIndex(srcColorFormat, stride, sliceHeight, cx * step, cy * step)];
+                dst[vIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)] =
+                        src[vIndex(srcColorFormat, stride, sliceHeight, cx * step, cy * step)];
+            }
+        }
+    }
+
+    /**
+     * Copies a decoded image of any YUV 4:2:0 layout into the tightly packed layout of the
+     * encoder, keeping one sample out of mSampleSize in each direction.
+     *
+     * @return False if the decoder output is not readable as an Image.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean copyDecodedImage(MediaCodec decoder, int outputIndex, byte[] dst) {
+        Image image = decoder.getOutputImage(outputIndex);
+        if (image == null) {
+            return false;
+        }
+        try {
+            copyImage(image, dst);
+        } finally {
+            image.close();
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void copyImage(Image image, byte[] dst) {
+        Rect crop = image.getCropRect();
+        Image.Plane[] planes = image.getPlanes();
+        int step = mSampleSize;
+
+        // Luma, row by row
+        ByteBuffer luma = planes[0].getBuffer();
+        int lumaRowStride = planes[0].getRowStride();
+        int lumaPixelStride = planes[0].getPixelStride();
+        for (int y = 0; y < mHeight; y++) {
+            int srcRow = (crop.top + y * step) * lumaRowStride + crop.left * lumaPixelStride;
+            if (step == 1 && lumaPixelStride == 1) {
+                luma.position(srcRow);
+                luma.get(dst, y * mWidth, mWidth);
+                continue;
+            }
+            for (int x = 0; x < mWidth; x++) {
+                dst[y * mWidth + x] = luma.get(srcRow + x * step * lumaPixelStride);
+            }
+        }
+
+        // Chroma, sample by sample
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int chromaRowStride = planes[1].getRowStride();
+        int chromaPixelStride = planes[1].getPixelStride();
+        for (int cy = 0; cy < mHeight / 2; cy++) {
+            int srcRow = (crop.top / 2 + cy * step) * chromaRowStride;
+            for (int cx = 0; cx < mWidth / 2; cx++) {
+                int src = srcRow + (crop.left / 2 + cx * step) * chromaPixelStride;
+                dst[uIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)] = u.get(src);
+                dst[vIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)] = v.get(src);
+            }
+        }
+    }
+
+    /**
+     * Detect stage: runs the tracking detector on every Nth frame, and gives the frames in
+     * between emoji placements interpolated from the detections before and after them.
+     */
+    private void detect() throws InterruptedException {
+        // Tracking keeps the same id for a face across detections, so it can be interpolated
+        FaceDetector detector = new FaceDetector.Builder(mContext)
+                .setTrackingEnabled(true)
+                .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
+                .setMode(FaceDetector.FAST_MODE)
+                .build();
+        try {
+            List<VideoFrame> pending = new ArrayList<>();
+            SparseArray<Emojifier.Placement> previous = new SparseArray<>();
+            int previousIndex = 0;
+
+            while (true) {
+                VideoFrame frame = mDecodedFrames.take();
+
+                if (frame == END_OF_STREAM) {
+                    // No detection after the last frames, keep the emojis where they were
+                    for (VideoFrame held : pending) {
+                        held.mPlacements = interpolate(previous, previous, 0);
+                        mDetectedFrames.put(held);
+                    }
+                    for (int i = 0; i < mWorkerCount; i++) {
+                        mDetectedFrames.put(END_OF_STREAM);
+                    }
+                    return;
+                }
+
+                if (frame.mIndex % mDetectionInterval != 0) {
+                    pending.add(frame);
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                SparseArray<Emojifier.Placement> current = detectPlacements(detector, frame);
+                for (VideoFrame between : pending) {
+                    float t = (float) (between.mIndex - previousIndex)
+                            / (frame.mIndex - previousIndex);
+                    between.mPlacements = interpolate(previous, current, t);
+                }
+                frame.mPlacements = interpolate(current, current, 0);
+                mDetectNanos.addAndGet(System.nanoTime() - start);
+
+                for (VideoFrame between : pending) {
+                    mDetectedFrames.put(between);
+                }
+                pending.clear();
+                mDetectedFrames.put(frame);
+
+                previous = current;
+                previousIndex = frame.mIndex;
+            }
+        } finally {
+            detector.release();
+        }
+    }
+
+    /**
+     * Runs a full detection on a frame.
+     *
+     * @return The emoji placements, keyed by the tracking id of their face.
+     */
+    private SparseArray<Emojifier.Placement> detectPlacements(FaceDetector detector,
+                                                             VideoFrame frame) {
+        // The luma plane comes first in every 4:2:0 layout, which is all the detector looks at.
+        // The detector only finds upright faces, so it is told how the frame is shown.
+        Frame detectorFrame = new Frame.Builder()
+                .setImageData(ByteBuffer.wrap(frame.mYuv), mWidth, mHeight, ImageFormat.NV21)
+                .setRotation(mRotation / 90)
+                .setId(frame.mIndex)
+                .setTimestampMillis(frame.mPresentationTimeUs / 1000)
+                .build();
+        SparseArray<Face> faces = detector.detect(detectorFrame);
+        mDetectionCount++;
+
+        SparseArray<Emojifier.Placement> placements = new SparseArray<>(faces.size());
+        for (int i = 0; i < faces.size(); i++) {
+            Face face = faces.valueAt(i);
+            Emojifier.Placement upright = Emojifier.placeEmoji(Emojifier.whichEmoji(face), face);
+            placements.put(face.getId(), new Emojifier.Placement(upright.getEmoji(),
+                    toFrameCoordinates(upright.getBounds())));
+        }
+        return placements;
+    }
+
+    /**
+     * Maps a rectangle from the upright coordinates the detector reports faces in back to the
+     * coordinates of the stored frame.
+     */
+    private RectF toFrameCoordinates(RectF upright) {
+        RectF bounds;
+        switch (mRotation) {
+            case 90:
+                bounds = new RectF(upright.top, mHeight - upright.left,
+                        upright.bottom, mHeight - upright.right);
+                break;
+            case 180:
+                bounds = new RectF(mWidth - upright.left, mHeight - upright.top,
+                        mWidth - upright.right, mHeight - upright.bottom);
+                break;
+            case 270:
+                bounds = new RectF(mWidth - upright.top, upright.left,
+                        mWidth - upright.bottom, upright.right);
+                break;
+            default:
+                return upright;
+        }
+        bounds.sort();
+        return bounds;
+    }
+
+    /**
+     * Interpolates the placements of the faces between two detections. Faces that were lost
+     * since the first detection stay where they were; faces that appear in the second one
+     * are only shown from that frame on.
+     *
+     * @param from The placements at the first detection.
+     * @param to   The placements at the second detection.
+     * @param t    The position between the two detections, from 0 to 1.
+     * @return The placements for the frame.
+     */
+    private static List<Emojifier.Placement> interpolate(SparseArray<Emojifier.Placement> from,
+                                                         SparseArray<Emojifier.Placement> to,
+                                                         float t) {
+        List<Emojifier.Placement> placements = new ArrayList<>(from.size());
+        for (int i = 0; i < from.size(); i++) {
+            Emojifier.Placement start = from.valueAt(i);
+            Emojifier.Placement end = to.get(from.keyAt(i));
+            if (end == null) {
+                placements.add(start);
+                continue;
+            }
+            RectF a = start.getBounds();
+            RectF b = end.getBounds();
+            RectF bounds = new RectF(
+                    a.left + (b.left - a.left) * t,
+                    a.top + (b.top - a.top) * t,
+                    a.right + (b.right - a.right) * t,
+                    a.bottom + (b.bottom - a.bottom) * t);
+            placements.add(new Emojifier.Placement(
+                    t < .5f ? start.getEmoji() : end.getEmoji(), bounds));
+        }
+        return placements;
+    }
+
+    /**
+     * Composite stage: draws the emojis into the frames. Only the pixels under each emoji are
+     * converted to ARGB and back, through a bitmap and a pixel buffer reused across frames.
+     */
+    private void composite() throws InterruptedException {
+        EmojiAtlas atlas = EmojiAtlas.get(mContext);
+        Bitmap bitmap = null;
+        Canvas canvas = null;
+        int[] pixels = new int[0];
+        Rect region = new Rect();
+        RectF bounds = new RectF();
+
+        while (true) {
+            VideoFrame frame = mDetectedFrames.take();
+            if (frame == END_OF_STREAM) {
+                mCompositedFrames.put(END_OF_STREAM);
+                return;
+            }
+
+            long start = System.nanoTime();
+            for (Emojifier.Placement placement : frame.mPlacements) {
+                // Find the pixels under the emoji, aligned to the 2 x 2 chroma blocks
+                placement.getBounds().roundOut(region);
+                region.left &= ~1;
+                region.top &= ~1;
+                region.right = (region.right + 1) & ~1;
+                region.bottom = (region.bottom + 1) & ~1;
+                if (!region.intersect(0, 0, mWidth, mHeight) || region.isEmpty()) {
+                    continue;
+                }
+                int width = region.width();
+                int height = region.height();
+
+                // Grow the reusable bitmap and buffer when a larger emoji comes along, each side
+                // separately so they never exceed the frame size the budget was computed for
+                if (bitmap == null || bitmap.getWidth() < width || bitmap.getHeight() < height) {
+                    int bitmapWidth = Math.max(width, bitmap == null ? 0 : bitmap.getWidth());
+                    int bitmapHeight = Math.max(height, bitmap == null ? 0 : bitmap.getHeight());
+                    if (bitmap != null) {
+                        bitmap.recycle();
+                    }
+                    bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight,
+                            Bitmap.Config.ARGB_8888);
+                    canvas = new Canvas(bitmap);
+                    pixels = new int[bitmapWidth * bitmapHeight];
+                }
+
+                // Draw the emoji over the frame pixels, in the coordinates of the region. It is
+                // turned against the rotation of the player, so it is upright when shown.
+                yuvToArgb(frame.mYuv, region, pixels);
+                bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+                bounds.set(placement.getBounds());
+                bounds.offset(-region.left, -region.top);
+                int saveCount = canvas.save();
+                if (mRotation != 0) {
+                    float centerX = bounds.centerX();
+                    float centerY = bounds.centerY();
+                    canvas.rotate(-mRotation, centerX, centerY);
+                    if (mRotation != 180) {
+                        float halfWidth = bounds.height() / 2;
+                        float halfHeight = bounds.width() / 2;
+                        bounds.set(centerX - halfWidth, centerY - halfHeight,
+                                centerX + halfWidth, centerY + halfHeight);
+                    }
+                }
+                atlas.draw(canvas, placement.getEmoji(), bounds);
+                canvas.restoreToCount(saveCount);
+                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                argbToYuv(pixels, region, frame.mYuv);
+            }
+            mCompositeNanos.addAndGet(System.nanoTime() - start);
+
+            mCompositedFrames.put(frame);
+        }
+    }
+
+    private void yuvToArgb(byte[] yuv, Rect region, int[] argb) {
+        int width = region.width();
+        for (int y = region.top; y < region.bottom; y++) {
+            for (int x = region.left; x < region.right; x++) {
+                int luma = (yuv[y * mWidth + x] & 0xff) - 16;
+                int u = (yuv[uIndex(mFrameColorFormat, mWidth, mHeight, x / 2, y / 2)] & 0xff)
+                        - 128;
+                int v = (yuv[vIndex(mFrameColorFormat, mWidth, mHeight, x / 2, y / 2)] & 0xff)
+                        - 128;
+                int c = 298 * Math.max(luma, 0);
+                int r = clamp((c + 409 * v + 128) >> 8);
+                int g = clamp((c - 100 * u - 208 * v + 128) >> 8);
+                int b = clamp((c + 516 * u + 128) >> 8);
+                argb[(y - region.top) * width + (x - region.left)] =
+                        0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private void argbToYuv(int[] argb, Rect region, byte[] yuv) {
+        int width = region.width();
+        for (int y = region.top; y < region.bottom; y++) {
+            for (int x = region.left; x < region.right; x++) {
+                int pixel = argb[(y - region.top) * width + (x - region.left)];
+                int r = (pixel >> 16) & 0xff;
+                int g = (pixel >> 8) & 0xff;
+                int b = pixel & 0xff;
+                yuv[y * mWidth + x] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+
+                // One chroma sample per 2 x 2 block, taken from its top left pixel
+                if ((x & 1) == 0 && (y & 1) == 0) {
+                    yuv[uIndex(mFrameColorFormat, mWidth, mHeight, x / 2, y / 2)] =
+                            (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                    yuv[vIndex(mFrameColorFormat, mWidth, mHeight, x / 2, y / 2)] =
+                            (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                }
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    // Index of the U sample of a chroma block in a 4:2:0 buffer
+    private static int uIndex(int colorFormat, int stride, int sliceHeight, int cx, int cy) {
+        int chromaBase = stride * sliceHeight;
+        if (colorFormat == COLOR_FORMAT_PLANAR) {
+            return chromaBase + cy * (stride / 2) + cx;
+        }
+        return chromaBase + cy * stride + 2 * cx;
+    }
+
+    // Index of the V sample of a chroma block in a 4:2:0 buffer
+    private static int vIndex(int colorFormat, int stride, int sliceHeight, int cx, int cy) {
+        if (colorFormat == COLOR_FORMAT_PLANAR) {
+            return uIndex(colorFormat, stride, sliceHeight, cx, cy)
+                    + (stride / 2) * (sliceHeight / 2);
+        }
+        return uIndex(colorFormat, stride, sliceHeight, cx, cy) + 1;
+    }
+
+    /**
+     * Encode stage: puts the composited frames back in order and feeds them to the encoder,
+     * writing its output to the muxer along with the audio samples up to the same time.
+     */
+    private class Encoder {
+        private final MediaCodec mCodec;
+        private final MediaMuxer mMuxer;
+        private final MediaExtractor mAudioExtractor;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final MediaCodec.BufferInfo mAudioInfo = new MediaCodec.BufferInfo();
+        private ByteBuffer[] mInputBuffers;
+        private ByteBuffer[] mOutputBuffers;
+        private ByteBuffer mAudioBuffer;
+        private int mTrackIndex = -1;
+        private int mAudioTrackIndex = -1;
+        private boolean mMuxerStarted;
+        private int mFrameCount;
+
+        // The layout of the encoder input buffers, when they are not written through an Image
+        private int mInputStride;
+        private int mInputSliceHeight;
+
+        @SuppressWarnings("deprecation")
+        Encoder(MediaCodec codec, MediaMuxer muxer, MediaExtractor audioExtractor) {
+            mCodec = codec;
+            mMuxer = muxer;
+            mAudioExtractor = audioExtractor;
+            mInputBuffers = codec.getInputBuffers();
+            mOutputBuffers = codec.getOutputBuffers();
+
+            // Before API 21 the input buffers are tightly packed
+            mInputStride = mWidth;
+            mInputSliceHeight = mHeight;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                MediaFormat inputFormat = codec.getInputFormat();
+                if (inputFormat.containsKey(KEY_STRIDE)) {
+                    mInputStride = Math.max(mWidth, inputFormat.getInteger(KEY_STRIDE));
+                }
+                if (inputFormat.containsKey(KEY_SLICE_HEIGHT)) {
+                    mInputSliceHeight =
+                            Math.max(mHeight, inputFormat.getInteger(KEY_SLICE_HEIGHT));
+                }
+            }
+        }
+
+        void encodeAll() throws InterruptedException {
+            // The composite workers may finish frames out of order
+            SparseArray<VideoFrame> waiting = new SparseArray<>();
+            int nextIndex = 0;
+            int finishedWorkers = 0;
+
+            while (finishedWorkers < mWorkerCount) {
+                VideoFrame frame = mCompositedFrames.take();
+                if (frame == END_OF_STREAM) {
+                    finishedWorkers++;
+                    continue;
+                }
+                waiting.put(frame.mIndex, frame);
+
+                while ((frame = waiting.get(nextIndex)) != null) {
+                    waiting.remove(nextIndex);
+                    long start = System.nanoTime();
+                    encode(frame);
+                    mEncodeNanos.addAndGet(System.nanoTime() - start);
+                    mFreeFrames.put(frame);
+                    nextIndex++;
+                }
+            }
+
+            // Flush the encoder
+            long start = System.nanoTime();
+            int inputIndex;
+            while ((inputIndex = mCodec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            mCodec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+
+            // Copy the audio that outlasts the video
+            copyAudio(Long.MAX_VALUE);
+            mEncodeNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        private void encode(VideoFrame frame) throws InterruptedException {
+            int inputIndex;
+            while ((inputIndex = mCodec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            int size;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && writeImage(frame.mYuv, inputIndex)) {
+                size = frame.mYuv.length;
+            } else {
+                size = writeBuffer(frame.mYuv, mInputBuffers[inputIndex]);
+            }
+            mCodec.queueInputBuffer(inputIndex, 0, size, frame.mPresentationTimeUs, 0);
+            mFrameCount++;
+            drain(false);
+        }
+
+        /**
+         * Writes a frame into an encoder input image of any YUV 4:2:0 layout.
+         *
+         * @return False if the encoder input is not writable as an Image.
+         */
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private boolean writeImage(byte[] yuv, int inputIndex) {
+            Image image = mCodec.getInputImage(inputIndex);
+            if (image == null) {
+                return false;
+            }
+            Image.Plane[] planes = image.getPlanes();
+
+            // Luma, row by row
+            ByteBuffer luma = planes[0].getBuffer();
+            int lumaRowStride = planes[0].getRowStride();
+            int lumaPixelStride = planes[0].getPixelStride();
+            for (int y = 0; y < mHeight; y++) {
+                if (lumaPixelStride == 1) {
+                    luma.position(y * lumaRowStride);
+                    luma.put(yuv, y * mWidth, mWidth);
+                    continue;
+                }
+                for (int x = 0; x < mWidth; x++) {
+                    luma.put(y * lumaRowStride + x * lumaPixelStride, yuv[y * mWidth + x]);
+                }
+            }
+
+            // Chroma, sample by sample
+            ByteBuffer u = planes[1].getBuffer();
+            ByteBuffer v = planes[2].getBuffer();
+            int chromaRowStride = planes[1].getRowStride();
+            int chromaPixelStride = planes[1].getPixelStride();
+            for (int cy = 0; cy < mHeight / 2; cy++) {
+                for (int cx = 0; cx < mWidth / 2; cx++) {
+                    int dst = cy * chromaRowStride + cx * chromaPixelStride;
+                    u.put(dst, yuv[uIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)]);
+                    v.put(dst, yuv[vIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)]);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes a frame into an encoder input buffer, padding it to the stride and slice
+         * height of the encoder.
+         *
+         * @return The number of bytes to queue.
+         */
+        private int writeBuffer(byte[] yuv, ByteBuffer buffer) {
+            buffer.clear();
+            if (mInputStride == mWidth && mInputSliceHeight == mHeight) {
+                buffer.put(yuv);
+                return yuv.length;
+            }
+
+            // Luma, row by row
+            for (int y = 0; y < mHeight; y++) {
+                buffer.position(y * mInputStride);
+                buffer.put(yuv, y * mWidth, mWidth);
+            }
+
+            // Chroma, sample by sample
+            for (int cy = 0; cy < mHeight / 2; cy++) {
+                for (int cx = 0; cx < mWidth / 2; cx++) {
+                    buffer.put(uIndex(mFrameColorFormat, mInputStride, mInputSliceHeight, cx, cy),
+                            yuv[uIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)]);
+                    buffer.put(vIndex(mFrameColorFormat, mInputStride, mInputSliceHeight, cx, cy),
+                            yuv[vIndex(mFrameColorFormat, mWidth, mHeight, cx, cy)]);
+                }
+            }
+            return mInputStride * mInputSliceHeight * 3 / 2;
+        }
+
+        /**
+         * Copies the audio samples up to a time from the input to the muxer, as they are.
+         *
+         * @param untilUs The presentation time of the last sample to copy.
+         */
+        @SuppressWarnings("deprecation")
+        private void copyAudio(long untilUs) {
+            if (mAudioTrackIndex < 0) {
+                return;
+            }
+            long sampleTimeUs;
+            while ((sampleTimeUs = mAudioExtractor.getSampleTime()) >= 0
+                    && sampleTimeUs <= untilUs) {
+                int size = mAudioExtractor.readSampleData(mAudioBuffer, 0);
+                if (size < 0) {
+                    break;
+                }
+                int flags = (mAudioExtractor.getSampleFlags()
+                        & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                mAudioInfo.set(0, size, sampleTimeUs, flags);
+                mMuxer.writeSampleData(mAudioTrackIndex, mAudioBuffer, mAudioInfo);
+                mAudioExtractor.advance();
+            }
+        }
+
+        /**
+         * Adds the audio track to the muxer, which must happen before it starts. An audio format
+         * the muxer can not carry is dropped rather than failing the video.
+         */
+        private void addAudioTrack() {
+            if (mAudioExtractor == null) {
+                return;
+            }
+            try {
+                mAudioTrackIndex = mMuxer.addTrack(mAudioFormat);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Timber.w(e, "VideoEmojifier: dropping unsupported audio track "
+                        + mAudioFormat.getString(MediaFormat.KEY_MIME));
+                return;
+            }
+            int bufferSize = mAudioFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? mAudioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    : DEFAULT_AUDIO_BUFFER_SIZE;
+            mAudioBuffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        /**
+         * Writes the available encoder output to the muxer.
+         *
+         * @param endOfStream Whether to wait until the encoder has output its last buffer.
+         */
+        @SuppressWarnings("deprecation")
+        private void drain(boolean endOfStream) throws InterruptedException {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                int outputIndex = mCodec.dequeueOutputBuffer(mInfo, endOfStream ? TIMEOUT_US : 0);
+                if (outputIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (!endOfStream) {
+                        return;
+                    }
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    mOutputBuffers = mCodec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mTrackIndex = mMuxer.addTrack(mCodec.getOutputFormat());
+                    addAudioTrack();
+                    mMuxer.start();
+                    mMuxerStarted = true;
+                } else if (outputIndex >= 0) {
+                    // The codec config was already passed to the muxer with the output format
+                    if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        mInfo.size = 0;
+                    }
+                    if (mInfo.size > 0 && mMuxerStarted) {
+                        ByteBuffer buffer = mOutputBuffers[outputIndex];
+                        buffer.position(mInfo.offset);
+                        buffer.limit(mInfo.offset + mInfo.size);
+                        mMuxer.writeSampleData(mTrackIndex, buffer, mInfo);
+
+                        // Keep the audio interleaved with the video
+                        copyAudio(mInfo.presentationTimeUs);
+                    }
+                    mCodec.releaseOutputBuffer(outputIndex, false);
+                    if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void releaseQuietly(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Never started
+        }
+        codec.release();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.emojify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+//The WarmUp class runs the cold-start work on a background thread: it builds the emoji atlas,
+//creates the shared face detector, waits for Play Services to make the detector operational
+//(on a fresh install the face model is downloaded on first use) and runs one detection on a
+//blank frame so the native code is loaded. Listeners are told on the main thread once this is
+//done, so the UI can show progress instead of blocking on the first emojify.
+class WarmUp {
+
+    // How long to wait for the face model download before reporting the detector unavailable
+    private static final long OPERATIONAL_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long OPERATIONAL_POLL_MILLIS = 250;
+
+    // Size of the blank frame used to load the detector's native code
+    private static final int PROBE_SIZE = 64;
+
+    private static final String PREFS_NAME = "warm_up";
+    private static final String KEY_COLD_FIRST_RESULT_MILLIS = "cold_first_result_millis";
+    private static final String KEY_WARM_FIRST_RESULT_MILLIS = "warm_first_result_millis";
+
+    /**
+     * Callback for the end of the warm-up, always called on the main thread.
+     */
+    interface Listener {
+        /**
+         * @param operational Whether the face detector is ready to detect faces.
+         */
+        void onWarmUpFinished(boolean operational);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static final List<Listener> sListeners = new ArrayList<>();
+
+    private static boolean sStarted;
+    private static boolean sFinished;
+    private static boolean sOperational;
+    private static boolean sFirstResultRecorded;
+
+    /**
+     * Starts the warm-up on a background thread, if it was not started already.
+     *
+     * @param context The application context.
+     */
+    static synchronized void start(Context context) {
+        if (sStarted) {
+            return;
+        }
+        sStarted = true;
+
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                boolean operational = false;
+                try {
+                    // Build the emoji sprites first, they do not depend on Play Services
+                    EmojiAtlas.get(appContext);
+
+                    operational = probeDetector(Emojifier.getDetector(appContext));
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    Timber.e(e, "WarmUp: failed");
+                } finally {
+                    // Always report back, so nobody waits for the warm-up forever
+                    Timber.d("WarmUp: finished in " + (SystemClock.elapsedRealtime() - start)
+                            + " ms, detector operational = " + operational);
+                    finish(operational);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the detector is operational and runs one detection to load its native code.
+     *
+     * @return Whether the detector became operational before the timeout.
+     */
+    private static boolean probeDetector(FaceDetector detector) {
+        long deadline = SystemClock.elapsedRealtime() + OPERATIONAL_TIMEOUT_MILLIS;
+        while (!detector.isOperational()) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                Timber.w("WarmUp: face detector is still not operational");
+                return false;
+            }
+            SystemClock.sleep(OPERATIONAL_POLL_MILLIS);
+        }
+
+        Bitmap probe = Bitmap.createBitmap(PROBE_SIZE, PROBE_SIZE, Bitmap.Config.ARGB_8888);
+        Emojifier.detect(detector, new Frame.Builder().setBitmap(probe).build());
+        probe.recycle();
+        return true;
+    }
+
+    /**
+     * Records the outcome of the warm-up and notifies the waiting listeners.
+     */
+    private static void finish(final boolean operational) {
+        final List<Listener> listeners;
+        synchronized (WarmUp.class) {
+            sFinished = true;
+            sOperational = operational;
+            listeners = new ArrayList<>(sListeners);
+            sListeners.clear();
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onWarmUpFinished(operational);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Whether the warm-up has finished.
+     */
+    static synchronized boolean isFinished() {
+        return sFinished;
+    }
+
+    /**
+     * Calls the listener once the warm-up has finished. If it has already finished, the
+     * listener is called right away.
+     *
+     * @param listener The listener to call on the main thread.
+     */
+    static void whenFinished(Listener listener) {
+        boolean operational;
+        synchronized (WarmUp.class) {
+            if (!sFinished) {
+                sListeners.add(listener);
+                return;
+            }
+            operational = sOperational;
+        }
+        listener.onWarmUpFinished(operational);
+    }
+
+    /**
+     * Removes a listener that is no longer interested, e.g. a destroyed activity.
+     *
+     * @param listener The listener to remove.
+     */
+    static synchronized void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Records the latency of the first emojify result in this process, separately for results
+     * requested before the warm-up finished (cold) and after it (warm).
+     *
+     * @param context       The application context.
+     * @param cold          Whether the result was requested before the warm-up finished.
+     * @param latencyMillis The time from the request to the displayed result.
+     */
+    static void recordFirstResult(Context context, boolean cold, long latencyMillis) {
+        synchronized (WarmUp.class) {
+            if (sFirstResultRecorded) {
+                return;
+            }
+            sFirstResultRecorded = true;
+        }
+
+        Timber.d("recordFirstResult: " + (cold ? "cold" : "warm") + " first result in "
+                + latencyMillis + " ms");
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+                .putLong(cold ? KEY_COLD_FIRST_RESULT_MILLIS : KEY_WARM_FIRST_RESULT_MILLIS,
+                        latencyMillis)
+                .apply();
+    }
+}